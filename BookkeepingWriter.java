@@ -0,0 +1,221 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// write-behind for upload bookkeeping. sessions queue rows instead of doing
+// their own INSERTs; one thread collects them and writes each table's rows
+// as a single multi-row INSERT through a com.mysql.jdbc.PreparedStatement,
+// flushing every flushMillis or every maxRows rows, whichever comes first.
+// a session that needs to know its row is on disk keeps the Ticket and
+// waits on it.
+final class BookkeepingWriter extends Thread {
+
+	// an INSERT target: "INSERT INTO t (a,b) VALUES" + n x "(?,?)" + suffix
+	static final class Table {
+		final String prefix;
+		final String row;
+		final String suffix;
+		final int columns;
+		Table(String prefix, String row, String suffix) {
+			this.prefix = prefix;
+			this.row = row;
+			this.suffix = ( suffix != null ) ? suffix : "";
+			int n = 0;
+			for ( int i = 0; i < row.length(); i++ ) if ( row.charAt( i) == '?' ) n++;
+			this.columns = n;
+		}
+	}
+
+	// completion of one queued row
+	static final class Ticket {
+		private boolean done = false;
+		private SQLException error;
+
+		synchronized void complete(SQLException e) {
+			error = e;
+			done = true;
+			notifyAll();
+		}
+
+		// block until the row's batch has been written
+		synchronized void await(long timeoutMillis) throws SQLException, InterruptedException {
+			long end = System.currentTimeMillis() + timeoutMillis;
+			while ( !done ) {
+				long left = end - System.currentTimeMillis();
+				if ( left <= 0 ) throw new SQLException( "bookkeeping write not acknowledged after " + timeoutMillis + "ms");
+				wait( left);
+			}
+			if ( error != null ) throw error;
+		}
+
+		// like await(), but a timeout isn't an error: true once the batch has
+		// been written or has failed (see error())
+		synchronized boolean waitDone(long timeoutMillis) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeoutMillis;
+			while ( !done ) {
+				long left = end - System.currentTimeMillis();
+				if ( left <= 0 ) return false;
+				wait( left);
+			}
+			return true;
+		}
+
+		synchronized SQLException error() {
+			return error;
+		}
+	}
+
+	private static final class Row {
+		final Table table;
+		final Object[] values;
+		final Ticket ticket;
+		Row(Table table, Object[] values, Ticket ticket) {
+			this.table = table;
+			this.values = values;
+			this.ticket = ticket;
+		}
+	}
+
+	private final String url;
+	private final long flushMillis;
+	private final int maxRows;
+	private final BlockingQueue<Row> queue;
+	private Connection conn;
+	private final Map<Table, com.mysql.jdbc.PreparedStatement> fullBatch = new HashMap<Table, com.mysql.jdbc.PreparedStatement>();
+
+	// only the writer thread updates these
+	private volatile long rowsWritten = 0, batchesWritten = 0, rowsDropped = 0;
+
+	BookkeepingWriter(ThreadGroup group, String url, long flushMillis, int maxRows, int capacity) {
+		super( group, "FlickrFtpd-bookkeeping");
+		this.url = url;
+		this.flushMillis = flushMillis;
+		this.maxRows = maxRows;
+		this.queue = new ArrayBlockingQueue<Row>( capacity);
+		setDaemon( true);
+	}
+
+	// queue a row, fire and forget
+	void write(Table table, Object[] values) throws InterruptedException {
+		queue.put( new Row( table, values, null));
+	}
+
+	// queue a row and get a ticket to wait on
+	Ticket writeAcked(Table table, Object[] values) throws InterruptedException {
+		Ticket t = new Ticket();
+		queue.put( new Row( table, values, t));
+		return t;
+	}
+
+	void dumpStats(java.io.PrintStream ps) {
+		ps.println( "bookkeeping rows=" + rowsWritten + " batches=" + batchesWritten + " dropped=" + rowsDropped);
+	}
+
+	public void run() {
+		List<Row> batch = new ArrayList<Row>( maxRows);
+		while ( true ) {
+			try {
+				Row first = queue.take();
+				batch.add( first);
+
+				// gather until the batch is full or the flush interval is up
+				long deadline = System.nanoTime() + flushMillis * 1000000L;
+				while ( batch.size() < maxRows ) {
+					if ( queue.drainTo( batch, maxRows - batch.size()) > 0 ) continue;
+					long left = deadline - System.nanoTime();
+					if ( left <= 0 ) break;
+					Row r = queue.poll( left, TimeUnit.NANOSECONDS);
+					if ( r == null ) break;
+					batch.add( r);
+				}
+
+				flush( batch);
+				batch.clear();
+			}
+			catch ( InterruptedException e ) {
+				return;
+			}
+		}
+	}
+
+	private void flush(List<Row> batch) {
+		// rows for the same table go out together, in queue order
+		Map<Table, List<Row>> byTable = new LinkedHashMap<Table, List<Row>>();
+		for ( int i = 0; i < batch.size(); i++ ) {
+			Row r = batch.get( i);
+			List<Row> l = byTable.get( r.table);
+			if ( l == null ) byTable.put( r.table, l = new ArrayList<Row>());
+			l.add( r);
+		}
+
+		for ( Map.Entry<Table, List<Row>> e : byTable.entrySet() ) {
+			List<Row> rows = e.getValue();
+			SQLException failure = null;
+			try {
+				insert( e.getKey(), rows);
+				rowsWritten += rows.size();
+				batchesWritten++;
+			}
+			catch ( Throwable t ) {	// anything, so one bad row can't kill the writer
+				if ( t instanceof SQLException ) {
+					failure = (SQLException)t;
+				} else {
+					failure = new SQLException( t.toString());
+					failure.initCause( t);
+				}
+				System.out.println( "bookkeeping flush of " + rows.size() + " rows failed: " + t);
+				for ( int i = 0; i < rows.size(); i++ ) {
+					Row r = rows.get( i);
+					System.out.println( "bookkeeping dropped " + r.table.prefix + " " + Arrays.asList( r.values));
+				}
+				rowsDropped += rows.size();
+				reset();
+			}
+			for ( int i = 0; i < rows.size(); i++ ) {
+				Ticket t = rows.get( i).ticket;
+				if ( t != null ) t.complete( failure);
+			}
+		}
+	}
+
+	private void insert(Table table, List<Row> rows) throws SQLException {
+		if ( url == null ) return;	// no database (-stub): rows are dropped
+		if ( conn == null ) conn = DriverManager.getConnection( url);
+
+		int n = rows.size();
+		com.mysql.jdbc.PreparedStatement ps = ( n == maxRows ) ? fullBatch.get( table) : null;
+		boolean cached = ( n == maxRows );
+		if ( ps == null ) {
+			StringBuffer sql = new StringBuffer( table.prefix.length() + n * (table.row.length() + 1) + table.suffix.length() + 1);
+			sql.append( table.prefix).append( ' ');
+			for ( int i = 0; i < n; i++ ) {
+				if ( i > 0 ) sql.append( ',');
+				sql.append( table.row);
+			}
+			sql.append( ' ').append( table.suffix);
+			ps = (com.mysql.jdbc.PreparedStatement)conn.prepareStatement( sql.toString());
+			if ( cached ) fullBatch.put( table, ps);
+		}
+
+		try {
+			int p = 1;
+			for ( int i = 0; i < n; i++ ) {
+				Object[] v = rows.get( i).values;
+				for ( int j = 0; j < table.columns; j++ ) ps.setObject( p++, v[j]);
+			}
+			ps.executeUpdate();
+		}
+		finally {
+			if ( !cached ) ps.close();
+		}
+	}
+
+	// drop the connection and statements after an error; next flush reconnects
+	private void reset() {
+		for ( com.mysql.jdbc.PreparedStatement ps : fullBatch.values() )
+			try { ps.close(); } catch ( SQLException e ) {};
+		fullBatch.clear();
+		if ( conn != null ) try { conn.close(); } catch ( SQLException e ) {};
+		conn = null;
+	}
+}
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.net.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+// user affinity across several FlickrFtpd processes. the membership file
+// lists one node per line as "<node id> <host> <port>" ('#' starts a
+// comment); users are placed on nodes by consistent hashing of the login
+// name, so a user's upload index, dedup state and partial files stay on one
+// node and adding a node only moves the users that land on it. the file is
+// re-read when it changes, on a worker thread, so no session waits on the
+// host name lookups.
+final class ClusterRing {
+
+	private static final int VIRTUAL_NODES = 64;
+	private static final long RECHECK_MILLIS = 1000;
+
+	static final class Node {
+		final String id;
+		final String host;
+		final int port;
+		Node(String id, String host, int port) {
+			this.id = id;
+			this.host = host;
+			this.port = port;
+		}
+		public String toString() {
+			return id + "(" + host + ":" + port + ")";
+		}
+	}
+
+	private final File file;
+	private final String self;
+	private volatile TreeMap<Long, Node> ring = new TreeMap<Long, Node>();
+	private volatile Set<InetAddress> members = new HashSet<InetAddress>();
+	// guarded by this
+	private long loadedMtime = -1;
+	private long checked = 0;
+	private boolean reloading = false;
+
+	ClusterRing(String path, String self) throws IOException {
+		this.file = new File( path);
+		this.self = self;
+		reload();
+	}
+
+	String getSelf() {
+		return self;
+	}
+
+	// the node that owns this user
+	Node ownerOf(String user) {
+		maybeReload();
+		TreeMap<Long, Node> r = ring;
+		if ( r.isEmpty() ) return null;
+		Map.Entry<Long, Node> e = r.ceilingEntry( hash( user.toLowerCase()));
+		return ( e != null ) ? e.getValue() : r.firstEntry().getValue();
+	}
+
+	boolean isSelf(Node n) {
+		return n == null || n.id.equals( self);
+	}
+
+	// is this address one of ours? (peers are trusted to forward client
+	// addresses.) only the exact addresses the members' hosts resolve to
+	// count: 127.0.0.1 in the file doesn't vouch for all of 127/8.
+	boolean isMember(InetAddress a) {
+		maybeReload();
+		return members.contains( a);
+	}
+
+	// start a reload if the file has changed; callers carry on with the
+	// ring they have
+	private void maybeReload() {
+		synchronized ( this ) {
+			long now = System.currentTimeMillis();
+			if ( reloading || now - checked < RECHECK_MILLIS ) return;
+			checked = now;
+			if ( file.lastModified() == loadedMtime ) return;
+			reloading = true;
+		}
+		Thread t = new Thread( FlickrFtpd.workers, "FlickrFtpd-cluster-reload") {
+			public void run() {
+				try {
+					reload();
+				}
+				catch ( Exception e ) {
+					System.out.println( "cluster file " + file + " unreadable, keeping the old ring: " + e.getMessage());
+				}
+				finally {
+					synchronized ( ClusterRing.this ) { reloading = false; }
+				}
+			}
+		};
+		t.setDaemon( true);
+		t.start();
+	}
+
+	// reads and resolves without holding the lock; only one runs at a time
+	// (the constructor, then maybeReload()'s thread)
+	private void reload() throws IOException {
+		long mtime = file.lastModified();
+		TreeMap<Long, Node> r = new TreeMap<Long, Node>();
+		Set<InetAddress> m = new HashSet<InetAddress>();
+		BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file), FlickrFtpd.TELNET));
+		try {
+			String line;
+			while ( (line = in.readLine()) != null ) {
+				int hash = line.indexOf( '#');
+				if ( hash >= 0 ) line = line.substring( 0, hash);
+				StringTokenizer st = new StringTokenizer( line);
+				if ( st.countTokens() < 3 ) continue;
+				Node n = new Node( st.nextToken(), st.nextToken(), Integer.parseInt( st.nextToken()));
+				for ( int i = 0; i < VIRTUAL_NODES; i++ ) r.put( hash( n.id + "#" + i), n);
+				try {
+					m.addAll( Arrays.asList( InetAddress.getAllByName( n.host)));
+				}
+				catch ( UnknownHostException e ) {};
+			}
+		}
+		finally {
+			in.close();
+		}
+		ring = r;
+		members = m;
+		synchronized ( this ) { loadedMtime = mtime; }
+		if ( FlickrFtpd.log) System.out.println( "cluster ring loaded: " + new LinkedHashSet<Node>( r.values()));
+	}
+
+	private static long hash(String s) {
+		try {
+			byte[] d = MessageDigest.getInstance( "MD5").digest( s.getBytes( "UTF-8"));
+			long h = 0;
+			for ( int i = 0; i < 8; i++ ) h = (h << 8) | (d[i] & 0xff);
+			return h;
+		}
+		catch ( Exception e ) {
+			throw new IllegalStateException( e.toString());
+		}
+	}
+}
@@ -0,0 +1,250 @@
+import java.io.*;
+
+// reads control-channel lines straight out of a reusable per-session byte
+// buffer (the channel is ISO-8859-1, so one byte is one char). the verb is
+// packed big-endian into a long, upper-cased, and compared against the
+// constants below; numeric arguments are parsed in place. nothing is
+// allocated per command unless the caller asks for argString().
+final class CommandParser {
+
+	static final long USER    = pack( "USER");
+	static final long PASS    = pack( "PASS");
+	static final long RETR    = pack( "RETR");
+	static final long STOR    = pack( "STOR");
+	static final long REST    = pack( "REST");
+	static final long TYPE    = pack( "TYPE");
+	static final long DELE    = pack( "DELE");
+	static final long RMD     = pack( "RMD");
+	static final long XRMD    = pack( "XRMD");
+	static final long MKD     = pack( "MKD");
+	static final long XMKD    = pack( "XMKD");
+	static final long RNFR    = pack( "RNFR");
+	static final long RNTO    = pack( "RNTO");
+	static final long CDUP    = pack( "CDUP");
+	static final long XCDUP   = pack( "XCDUP");
+	static final long CWD     = pack( "CWD");
+	static final long SIZE    = pack( "SIZE");
+	static final long MDTM    = pack( "MDTM");
+	static final long QUIT    = pack( "QUIT");
+	static final long PWD     = pack( "PWD");
+	static final long XPWD    = pack( "XPWD");
+	static final long PORT    = pack( "PORT");
+	static final long EPRT    = pack( "EPRT");
+	static final long LIST    = pack( "LIST");
+	static final long NLST    = pack( "NLST");
+	static final long NOOP    = pack( "NOOP");
+	static final long SYST    = pack( "SYST");
+	static final long MODE    = pack( "MODE");
+	static final long STRU    = pack( "STRU");
+	static final long PASV    = pack( "PASV");
+	static final long HASH    = pack( "HASH");
+	static final long XSHA256 = pack( "XSHA256");
+	static final long ALLO    = pack( "ALLO");
+	static final long AUTH    = pack( "AUTH");
+	static final long PBSZ    = pack( "PBSZ");
+	static final long PROT    = pack( "PROT");
+	static final long XFWD    = pack( "XFWD");	// cluster peer forwarding a client
+
+	private static final int MAX_LINE = 2048;
+
+	private InputStream in;
+	private final byte[] buf = new byte[ MAX_LINE];
+	private int pos = 0, limit = 0;		// unread bytes are buf[pos..limit)
+
+	// the current line
+	private int lineStart, lineEnd;
+	private int argStart, argEnd;
+	private long verb;
+	private boolean tooLong;
+
+	CommandParser(InputStream in) {
+		this.in = in;
+	}
+
+	// swap the underlying stream (e.g. after a TLS upgrade). anything still
+	// buffered came from the old stream and is thrown away: after AUTH TLS it
+	// would be plaintext injected ahead of the handshake.
+	void setInput(InputStream in) {
+		this.in = in;
+		pos = limit = 0;
+	}
+
+	// pack up to 8 chars, upper-cased, into a long
+	static long pack(String s) {
+		long v = 0;
+		for ( int i = 0; i < s.length() && i < 8; i++ ) v = (v << 8) | (Character.toUpperCase( s.charAt( i)) & 0xff);
+		return v;
+	}
+
+	// read the next line. returns false at end of stream.
+	boolean next() throws IOException {
+		tooLong = false;
+		int scan = pos;
+		while ( true ) {
+			while ( scan < limit && buf[ scan] != '\n' ) scan++;
+			if ( scan < limit ) break;
+
+			if ( pos > 0 ) {		// make room by sliding the partial line down
+				System.arraycopy( buf, pos, buf, 0, limit - pos);
+				scan -= pos;
+				limit -= pos;
+				pos = 0;
+			}
+			if ( limit == buf.length ) {	// line doesn't fit; drop what we have
+				tooLong = true;
+				scan = limit = 0;
+			}
+			int n = in.read( buf, limit, buf.length - limit);
+			if ( n == -1 ) {
+				if ( limit == pos ) return false;
+				scan = limit;		// unterminated last line
+				break;
+			}
+			limit += n;
+		}
+
+		lineStart = pos;
+		lineEnd = scan;
+		pos = ( scan < limit ) ? scan + 1 : scan;
+		if ( lineEnd > lineStart && buf[ lineEnd - 1] == '\r' ) lineEnd--;
+
+		// verb
+		int i = lineStart;
+		verb = 0;
+		while ( i < lineEnd && buf[i] != ' ' ) {
+			if ( i - lineStart < 8 ) {
+				int c = buf[i] & 0xff;
+				if ( c >= 'a' && c <= 'z' ) c -= 'a' - 'A';
+				verb = (verb << 8) | c;
+			} else {
+				verb = 0;		// longer than anything we know
+			}
+			i++;
+		}
+		if ( tooLong ) verb = 0;
+
+		// argument, trimmed
+		while ( i < lineEnd && buf[i] <= ' ' ) i++;
+		argStart = i;
+		argEnd = lineEnd;
+		while ( argEnd > argStart && buf[ argEnd - 1] <= ' ' ) argEnd--;
+		return true;
+	}
+
+	// is there already (part of) another line waiting in the buffer?
+	boolean hasBuffered() {
+		return pos < limit;
+	}
+
+	// hand over whatever has been read past the current line (e.g. when the
+	// session is spliced through to another node)
+	void drainBuffered(OutputStream out) throws IOException {
+		if ( pos < limit ) out.write( buf, pos, limit - pos);
+		pos = limit = 0;
+	}
+
+	long verb() {
+		return verb;
+	}
+
+	boolean isTooLong() {
+		return tooLong;
+	}
+
+	int argLength() {
+		return argEnd - argStart;
+	}
+
+	// upper-cased char of the argument, 0 past the end
+	char argChar(int i) {
+		if ( i >= argEnd - argStart ) return 0;
+		return Character.toUpperCase( (char)(buf[ argStart + i] & 0xff));
+	}
+
+	String argString() {
+		try {
+			return new String( buf, argStart, argEnd - argStart, FlickrFtpd.TELNET);
+		}
+		catch ( UnsupportedEncodingException e ) {	// ISO-8859-1 is always there
+			throw new IllegalStateException( e.toString());
+		}
+	}
+
+	String verbString() {
+		int end = lineStart;
+		while ( end < lineEnd && buf[ end] != ' ' ) end++;
+		try {
+			return new String( buf, lineStart, end - lineStart, FlickrFtpd.TELNET);
+		}
+		catch ( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e.toString());
+		}
+	}
+
+	// decimal argument, or -1 if it isn't one
+	long argLong() {
+		return parseLong( argStart, argEnd);
+	}
+
+	// PORT h1,h2,h3,h4,p1,p2 - returns the port, or -1 if malformed
+	int portArg() {
+		int field = 0, value = 0, digits = 0, port = 0;
+		for ( int i = argStart; i <= argEnd; i++ ) {
+			int c = ( i < argEnd ) ? buf[i] : ',';
+			if ( c >= '0' && c <= '9' ) {
+				value = value * 10 + (c - '0');
+				if ( ++digits > 3 || value > 255 ) return -1;
+			} else if ( c == ',' ) {
+				if ( digits == 0 ) return -1;
+				if ( field == 4 ) port = value << 8;
+				if ( field == 5 ) port |= value;
+				field++;
+				value = digits = 0;
+			} else {
+				return -1;
+			}
+		}
+		return ( field == 6 ) ? port : -1;
+	}
+
+	// EPRT |af|addr|port| - returns the port, or -1 if malformed
+	int eprtArg() {
+		if ( argEnd - argStart < 7 ) return -1;
+		byte delim = buf[ argStart];
+		int field = 0, start = argStart + 1;
+		for ( int i = argStart + 1; i < argEnd; i++ ) {
+			if ( buf[i] != delim ) continue;
+			if ( field == 2 ) {
+				long port = parseLong( start, i);
+				return ( port > 0 && port < 65536 && i == argEnd - 1 ) ? (int)port : -1;
+			}
+			field++;
+			start = i + 1;
+		}
+		return -1;
+	}
+
+	// echo the raw line to a log, masking the PASS argument. an overlong
+	// line is never echoed: all that's left of it is its tail, which could
+	// be a password without the PASS in front of it.
+	void logLine(PrintStream ps) {
+		if ( tooLong ) {
+			ps.print( "(line too long)");
+		} else if ( verb == PASS ) {
+			ps.print( "PASS ***");
+		} else {
+			ps.write( buf, lineStart, lineEnd - lineStart);
+		}
+	}
+
+	private long parseLong(int from, int to) {
+		if ( from >= to || to - from > 18 ) return -1;
+		long v = 0;
+		for ( int i = from; i < to; i++ ) {
+			int c = buf[i];
+			if ( c < '0' || c > '9' ) return -1;
+			v = v * 10 + (c - '0');
+		}
+		return v;
+	}
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// picks SO_RCVBUF for data connections per client address. long-haul
+// uploads are capped at window / RTT, so the buffer should cover the
+// bandwidth-delay product: we keep a round trip estimate per address (from
+// active-mode connects and control-channel reply/command turnarounds) and,
+// after each transfer, either double the buffer if the transfer looked
+// window-bound or size it to twice the measured BDP. throughput is also
+// tallied per RTT bucket so the effect can be checked.
+final class DataLinkTuner {
+
+	private static final int MAX_PATHS = 10000;
+	private static final int BUCKETS = 14;		// RTT log2 ms: <1, 1-2, ... 4096+
+
+	private static final class Path {
+		volatile long rtt = 0;		// nanos, min-biased average; 0 = unknown
+		volatile int buffer;
+		Path(int buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	private final int initial, min, max;
+	private final ConcurrentHashMap<InetAddress, Path> paths = new ConcurrentHashMap<InetAddress, Path>();
+	private final AtomicLongArray bucketBytes = new AtomicLongArray( BUCKETS);
+	private final AtomicLongArray bucketNanos = new AtomicLongArray( BUCKETS);
+	private final AtomicLongArray bucketCount = new AtomicLongArray( BUCKETS);
+
+	DataLinkTuner(int initial, int min, int max) {
+		this.initial = initial;
+		this.min = min;
+		this.max = max;
+	}
+
+	private Path path(InetAddress a) {
+		Path p = paths.get( a);
+		if ( p == null ) {
+			if ( paths.size() > MAX_PATHS ) paths.clear();	// crude, but this is only a hint
+			Path fresh = new Path( initial);
+			p = paths.putIfAbsent( a, fresh);
+			if ( p == null ) p = fresh;
+		}
+		return p;
+	}
+
+	// a round trip observation; follows drops at once, rises slowly, so
+	// client think time mostly washes out
+	void rttSample(InetAddress a, long nanos) {
+		if ( nanos <= 0 ) return;
+		Path p = path( a);
+		long r = p.rtt;
+		p.rtt = ( r == 0 || nanos < r ) ? nanos : r + (nanos - r) / 8;
+	}
+
+	int receiveBuffer(InetAddress a) {
+		return path( a).buffer;
+	}
+
+	// sizes the listener's buffer before accept() so window scaling is
+	// negotiated with it
+	ServerSocket listen(InetAddress client) throws IOException {
+		ServerSocket ss = new ServerSocket();
+		ss.setReceiveBufferSize( receiveBuffer( client));
+		ss.bind( new InetSocketAddress( 0)); // any port
+		return ss;
+	}
+
+	// active mode: the connect is a clean round trip sample
+	Socket connect(InetAddress client, int port, int timeout) throws IOException {
+		Socket s = new Socket();
+		s.setReceiveBufferSize( receiveBuffer( client));
+		long t0 = System.nanoTime();
+		s.connect( new InetSocketAddress( client, port), timeout);
+		rttSample( client, System.nanoTime() - t0);
+		return s;
+	}
+
+	void transferDone(InetAddress a, long bytes, long nanos, int bufferUsed) {
+		if ( bytes <= 0 || nanos <= 0 ) return;
+		Path p = path( a);
+		long rtt = p.rtt;
+
+		int b = 0;
+		for ( long ms = rtt / 1000000; ms > 0 && b < BUCKETS - 1; ms >>= 1 ) b++;
+		bucketBytes.addAndGet( b, bytes);
+		bucketNanos.addAndGet( b, nanos);
+		bucketCount.incrementAndGet( b);
+
+		// short transfers end before the window matters
+		if ( rtt == 0 || bytes < 4L * bufferUsed ) return;
+		long bdp = (long)((double)bytes / nanos * rtt);
+		long next = ( bdp >= bufferUsed * 3L / 4 ) ? bufferUsed * 2L : bdp * 2;
+		p.buffer = (int)Math.max( min, Math.min( max, next));
+	}
+
+	void dumpStats(PrintStream ps) {
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			long n = bucketCount.get( i);
+			if ( n == 0 ) continue;
+			long kbps = bucketBytes.get( i) * 1000000L / Math.max( 1, bucketNanos.get( i));	// bytes/ns * 1e9 / 1000
+			ps.println( "datalink rtt_ms<" + (1 << i) + " transfers=" + n + " avg_KBps=" + kbps);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// watches the spool filesystem so we can turn uploads away before the data
+// connection opens instead of failing half way through a write. a sampler
+// thread reads FileStore usable space; STOR reserves space up front (the
+// ALLO size, or the running average upload size) and releases it when done.
+// as free space drops toward the hard floor, accept() is slowed down.
+final class DiskMonitor extends Thread {
+
+	private final FileStore store;
+	private final long sampleMillis;
+	private final long hardFloor;		// never let usable space go below this
+	private final long softFloor;		// start slowing accepts below this
+	private final long maxAcceptDelay;	// ms, reached at the hard floor
+	private final long slowWriteNanos;	// writes slower than this also slow accepts
+
+	private final AtomicLong usable = new AtomicLong();
+	private final AtomicLong reserved = new AtomicLong();
+	private volatile long averageFileSize;
+	private volatile long averageWriteNanos = 0;
+
+	DiskMonitor(ThreadGroup group, String root, long sampleMillis, long hardFloor, long softFloor,
+			long maxAcceptDelay, long slowWriteNanos, long initialAverageFileSize) throws IOException {
+		super( group, "FlickrFtpd-disk");
+		this.store = Files.getFileStore( Paths.get( root));
+		this.sampleMillis = sampleMillis;
+		this.hardFloor = hardFloor;
+		this.softFloor = Math.max( softFloor, hardFloor + 1);
+		this.maxAcceptDelay = maxAcceptDelay;
+		this.slowWriteNanos = slowWriteNanos;
+		this.averageFileSize = initialAverageFileSize;
+		this.usable.set( store.getUsableSpace());
+		setDaemon( true);
+	}
+
+	public void run() {
+		while ( true ) {
+			try {
+				Thread.sleep( sampleMillis);
+				usable.set( store.getUsableSpace());
+			}
+			catch ( InterruptedException e ) {
+				return;
+			}
+			catch ( IOException e ) {
+				System.out.println( "disk monitor: " + e.getMessage());
+			}
+		}
+	}
+
+	// what a STOR should reserve when the client didn't say (via ALLO)
+	long averageFileSize() {
+		return averageFileSize;
+	}
+
+	// room for this many more bytes, counting everything already reserved?
+	boolean canFit(long bytes) {
+		return usable.get() - reserved.get() - bytes >= hardFloor;
+	}
+
+	boolean reserve(long bytes) {
+		while ( true ) {
+			long r = reserved.get();
+			if ( usable.get() - r - bytes < hardFloor ) return false;
+			if ( reserved.compareAndSet( r, r + bytes) ) return true;
+		}
+	}
+
+	// give back a reservation; written is what actually landed on disk, which
+	// we take off the cached free space until the next sample catches up.
+	void release(long bytes, long written) {
+		reserved.addAndGet( -bytes);
+		if ( written > 0 ) {
+			usable.addAndGet( -written);
+			averageFileSize = averageFileSize - (averageFileSize >> 4) + (written >> 4);
+		}
+	}
+
+	// approximate moving average; racing updates from sessions are fine
+	void recordWrite(long nanos) {
+		averageWriteNanos = averageWriteNanos - (averageWriteNanos >> 6) + (nanos >> 6);
+	}
+
+	long averageWriteNanos() {
+		return averageWriteNanos;
+	}
+
+	long usableSpace() {
+		return usable.get() - reserved.get();
+	}
+
+	// how long the accept loop should pause before taking the next session
+	long acceptDelayMillis() {
+		long free = usable.get() - reserved.get();
+		long delay = 0;
+		if ( free <= hardFloor ) {
+			delay = maxAcceptDelay;
+		} else if ( free < softFloor ) {
+			delay = maxAcceptDelay * (softFloor - free) / (softFloor - hardFloor);
+		}
+		if ( averageWriteNanos > slowWriteNanos ) delay = Math.max( delay, maxAcceptDelay / 4);
+		return delay;
+	}
+}
@@ -0,0 +1,102 @@
+import java.net.*;
+import java.util.concurrent.*;
+
+// shared reverse-DNS cache for log lines. lookups never happen on the
+// caller's thread: a miss returns the numeric address and queues a lookup on
+// a small pool, so the next log line for that host gets the name. failures
+// are cached too (for a shorter time) so a dead resolver isn't hammered.
+final class DnsCache {
+
+	// swappable for tests
+	interface Resolver {
+		// the host name, or null if there isn't one
+		String resolve(InetAddress addr) throws Exception;
+	}
+
+	static final Resolver SYSTEM = new Resolver() {
+		public String resolve(InetAddress addr) throws Exception {
+			String name = InetAddress.getByAddress( addr.getAddress()).getHostName();
+			return name.equals( addr.getHostAddress()) ? null : name;
+		}
+	};
+
+	private static final long TTL          = 10 * 60 * 1000;	// good answers
+	private static final long NEGATIVE_TTL = 60 * 1000;		// failures and no-names
+	private static final int  MAX_ENTRIES  = 10000;
+	private static final int  THREADS      = 2;
+	private static final int  MAX_PENDING  = 256;
+
+	private static final class Entry {
+		final String name;		// null while pending or when negative
+		final long expires;
+		final boolean pending;
+		Entry(String name, long expires, boolean pending) {
+			this.name = name;
+			this.expires = expires;
+			this.pending = pending;
+		}
+	}
+
+	private static final ConcurrentHashMap<InetAddress, Entry> cache = new ConcurrentHashMap<InetAddress, Entry>();
+	private static volatile Resolver resolver = SYSTEM;
+
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+		THREADS, THREADS, 60, TimeUnit.SECONDS,
+		new ArrayBlockingQueue<Runnable>( MAX_PENDING),
+		new ThreadFactory() {
+			// never the creating session's group: kill() treats every
+			// member of tg as a session
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread( FlickrFtpd.workers, r, "FlickrFtpd-dns");
+				t.setDaemon( true);
+				return t;
+			}
+		});	// full queue: execute() throws, and nameFor() forgets the lookup
+
+	private DnsCache() {}
+
+	static void setResolver(Resolver r) {
+		resolver = r;
+		cache.clear();
+	}
+
+	// the cached host name, or the numeric address if we don't have one (yet)
+	static String nameFor(final InetAddress addr) {
+		if ( addr == null ) return "-";
+		long now = System.currentTimeMillis();
+		Entry e = cache.get( addr);
+		if ( e != null && (e.pending || e.expires > now) ) return ( e.name != null ) ? e.name : addr.getHostAddress();
+
+		Entry pending = new Entry( ( e != null ) ? e.name : null, 0, true);
+		boolean mine = ( e == null ) ? cache.putIfAbsent( addr, pending) == null : cache.replace( addr, e, pending);
+		if ( mine ) {
+			if ( cache.size() > MAX_ENTRIES ) evict( now);
+			try {
+				pool.execute( new Runnable() {
+					public void run() { lookup( addr); }
+				});
+			}
+			catch ( RejectedExecutionException ex ) {
+				cache.remove( addr, pending);
+			}
+		}
+		return ( pending.name != null ) ? pending.name : addr.getHostAddress();
+	}
+
+	private static void lookup(InetAddress addr) {
+		String name = null;
+		try {
+			name = resolver.resolve( addr);
+		}
+		catch ( Exception e ) {};
+		long now = System.currentTimeMillis();
+		cache.put( addr, new Entry( name, now + (( name != null ) ? TTL : NEGATIVE_TTL), false));
+	}
+
+	private static void evict(long now) {
+		for ( java.util.Iterator<Entry> it = cache.values().iterator(); it.hasNext(); ) {
+			Entry e = it.next();
+			if ( !e.pending && e.expires <= now ) it.remove();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// checks that lookups the DNS pool has no room for aren't lost: with the
+// resolver stuck, more addresses are looked up than the pool can hold, and
+// once it's released every one of them has to come back with its name.
+// exits non-zero on failure.
+//
+//	java DnsCacheTest
+public class DnsCacheTest {
+
+	private static final int ADDRESSES = 300;	// more than DnsCache.MAX_PENDING plus its threads
+
+	public static void main(String[] args) throws Exception {
+		final CountDownLatch release = new CountDownLatch( 1);
+		DnsCache.setResolver( new DnsCache.Resolver() {
+			public String resolve(InetAddress addr) throws Exception {
+				release.await();
+				return name( addr);
+			}
+		});
+
+		InetAddress[] addrs = new InetAddress[ ADDRESSES];
+		for ( int i = 0; i < ADDRESSES; i++ ) {
+			addrs[i] = InetAddress.getByAddress( new byte[] { 10, 0, (byte)(i >> 8), (byte)i });
+			String got = DnsCache.nameFor( addrs[i]);
+			if ( !got.equals( addrs[i].getHostAddress()) ) fail( addrs[i] + " resolved while the resolver was stuck: " + got);
+		}
+
+		release.countDown();
+
+		// the ones that didn't fit are looked up again on the next call
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 10);
+		int left = ADDRESSES;
+		while ( left > 0 ) {
+			if ( System.nanoTime() > deadline ) fail( left + " of " + ADDRESSES + " addresses never resolved");
+			left = 0;
+			for ( int i = 0; i < ADDRESSES; i++ )
+				if ( !DnsCache.nameFor( addrs[i]).equals( name( addrs[i])) ) left++;
+			if ( left > 0 ) Thread.sleep( 10);
+		}
+		System.out.println( "ok: all " + ADDRESSES + " addresses resolved");
+	}
+
+	private static String name(InetAddress addr) {
+		return "host-" + addr.getHostAddress().replace( '.', '-') + ".example";
+	}
+
+	private static void fail(String why) {
+		System.out.println( "FAIL: " + why);
+		System.exit( 1);
+	}
+}
@@ -2,26 +2,72 @@ import java.io.*;
 import java.net.*;
 import java.sql.*;
 import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
 
 public class FlickrFtpd extends Thread {
 
 	// server config
   	private static String upload_root = "/path/to/flickr.com/temp";	// where to store uploaded files
 	private static String ingest_path = "/usr/bin/php -q /path/to/flickr.com/sendto/ftp_process.gne";
+	private static String ingest_stream_path = "/usr/bin/php -q /path/to/flickr.com/sendto/ftp_process_stream.gne";	// reads the file on stdin
+	private static boolean pipelined_ingest = false;	// overlap ingest with the upload
+	private static int ingest_pipe_chunks = 256;		// chunks buffered between STOR and the ingest pipe
+	private static long ingest_pipe_timeout = 2000;		// ms to wait for the pipe before giving up on it
+
+	// ingest scheduling
+	private static int ingest_workers = 4;
+	private static long ingest_small_bytes = 16L << 20;	// files up to this size use the fast lane
+	private static int ingest_fast_weight = 4;		// fast lane jobs dispatched per ...
+	private static int ingest_bulk_weight = 1;		// ... bulk lane job, when both are waiting
+	private static long ingest_quantum = 8L << 20;		// bytes credited per user per round
+	private static IngestScheduler ingest;
+
+	// FTPS; AUTH TLS is refused unless a keystore is configured
+	private static String tls_keystore = null;		// .jks or PKCS12
+	private static String tls_keystore_password = "changeit";
+	private static int tls_session_cache = 10000;		// server-side sessions kept for resumption
+	private static int tls_session_seconds = 3600;
+	private static TlsSupport tls;
+
+	// data connection receive buffers
+	private static int datalink_rcvbuf = 256 << 10;		// starting SO_RCVBUF for a new client
+	private static int datalink_rcvbuf_min = 64 << 10;
+	private static int datalink_rcvbuf_max = 16 << 20;
+	private static DataLinkTuner datalink;
+
+	// spool space admission control
+	private static long disk_sample_ms = 1000;
+	private static long disk_hard_floor = 1L << 30;		// refuse STOR rather than go below this
+	private static long disk_soft_floor = 10L << 30;	// slow down accepts below this
+	private static long disk_max_accept_delay = 2000;	// ms between accepts at the hard floor
+	private static long disk_slow_write_ns = 50000000;	// average write slower than this counts as pressure
+	private static long disk_initial_avg_file = 8L << 20;
+	private static DiskMonitor disk;
 	private static int localPort = 9021;		// port to listen on
 	private static boolean debug = true;		// print stack traces
-	private static boolean log   = true;		// show stuff
+	static boolean log   = true;		// show stuff
+	private static long modez_limit = 4L << 30;	// most a MODE Z upload may inflate to
 
 	// per instance class variables
 	private Socket incoming;              
+	private SessionTrace trace;
+	private SessionRecorder recorder;	// null unless recording
 
 	// global class variables
 	private static FlickrFtpd loadedServer;
 	private ServerSocket server;
+	private static InetAddress localNode;	// resolved once, shared by all sessions
 	private ServerSocket passiveSocket;
 	private Socket dataSocket;
 	private InetAddress remoteNode;
 	private int remotePort = 1;
+	private long restartOffset = 0;
+	private char transferMode = 'S';
+	private long allocSize = 0;		// from ALLO
+	private long reservedBytes = 0;		// spool space held for the current STOR
+	private boolean protectData = false;	// PROT P
+	private boolean forwarded = false;	// came in through another cluster node
 
 	// constants
 	static final String XFER_COMPLETE = "226 transfer complete";
@@ -40,12 +86,58 @@ public class FlickrFtpd extends Thread {
 	protected PreparedStatement	db_pstmt	= null;
 	protected static String		db_url		= "jdbc:mysql://localhost/flickr?user=ftp-rw";
 
+	// write-behind bookkeeping
+	private static long bookkeeping_flush_ms = 5;		// longest a row waits for its batch
+	private static int bookkeeping_rows = 500;		// rows per multi-row INSERT
+	private static int bookkeeping_queue = 50000;		// rows queued before sessions block
+	private static long bookkeeping_ack_ms = 10000;		// how long STOR waits for its row to be written
+	static final BookkeepingWriter.Table TEST_TABLE = new BookkeepingWriter.Table(
+		"INSERT INTO test_table (name) VALUES", "(?)", null);
+	static final BookkeepingWriter.Table UPLOADS = new BookkeepingWriter.Table(
+		"INSERT INTO ftp_uploads (user_id, filename, bytes, sha256, uploaded) VALUES", "(?,?,?,?,NOW())", null);
+	private static BookkeepingWriter bookkeeping;
+
+	// quotas
+	private static long quota_flush_ms = 1000;		// how often usage deltas are written back
+	static final BookkeepingWriter.Table QUOTA_USED = new BookkeepingWriter.Table(
+		"INSERT INTO users (id, quota_used) VALUES", "(?,?)", "ON DUPLICATE KEY UPDATE quota_used = quota_used + VALUES(quota_used)");
+	private static QuotaService quota;
+
+	// warm restarts
+	private static String snapshot_path = null;		// where to keep the snapshot, null to disable
+	private static long snapshot_ms = 30000;
+	private static WarmState warm;
+
+	// load testing
+	private static String record_path = null;		// append anonymized session transcripts here
+	private static boolean stub_backends = false;		// no MySQL, no ingest: any login works
+
+	// cluster mode: users are pinned to nodes by consistent hashing
+	private static String cluster_file = null;		// membership file, null for a single node
+	private static String node_id = "node1";		// this node's id in the membership file
+	private static boolean cluster_proxy = true;		// splice other nodes' users through, else tell them where to go
+	private static ClusterRing cluster;
+
 	// misc
   	static ThreadGroup tg = new ThreadGroup( "FlickrFtpd");
+	static ThreadGroup workers = new ThreadGroup( "FlickrFtpd-workers");	// helper threads, kept out of tg so kill() only sees sessions
 	static boolean shutdown = false;  
 
   
 	public static void main(String[] args) {
+		for ( int i = 0; i < args.length; i++ ) {
+			if ( args[i].equals( "-stub") ) {
+				stub_backends = true;
+				ingest_path = ingest_stream_path = "true";
+			}
+			else if ( args[i].equals( "-port") && i + 1 < args.length ) localPort = Integer.parseInt( args[++i]);
+			else if ( args[i].equals( "-root") && i + 1 < args.length ) upload_root = args[++i];
+			else if ( args[i].equals( "-record") && i + 1 < args.length ) record_path = args[++i];
+			else if ( args[i].equals( "-snapshot") && i + 1 < args.length ) snapshot_path = args[++i];
+			else if ( args[i].equals( "-cluster") && i + 1 < args.length ) cluster_file = args[++i];
+			else if ( args[i].equals( "-node") && i + 1 < args.length ) node_id = args[++i];
+			else if ( args[i].equals( "-redirect") ) cluster_proxy = false;
+		}
 		shutdown = false;
 		new FlickrFtpd().start(); // kick off a (simulated) daemon thread
 	}
@@ -63,15 +155,41 @@ public class FlickrFtpd extends Thread {
 			int i = tg.enumerate( list);
       
 			// no members means that we have gracefully suceeded
-			if ( i == 0 ) return true;
+			if ( i == 0 ) {
+				// wait for the quota deltas, so the snapshot knows which ones failed
+				if ( quota != null ) {
+					try {
+						if ( !quota.flush( bookkeeping_ack_ms) ) System.out.println( "quota deltas still unacknowledged at shutdown");
+					}
+					catch ( InterruptedException e ) { System.out.println( "final quota flush interrupted"); }
+				}
+				if ( warm != null ) {
+					try { warm.save(); }
+					catch ( Exception e ) { System.out.println( "final snapshot failed: " + e.getMessage()); }
+				}
+				if ( log) {
+					SessionTrace.dumpHistograms( System.out);
+					ModeZInputStream.dumpStats( System.out);
+					if ( ingest != null) ingest.dumpHistograms( System.out);
+					if ( bookkeeping != null) bookkeeping.dumpStats( System.out);
+					if ( tls != null) tls.dumpStats( System.out);
+					if ( datalink != null) datalink.dumpStats( System.out);
+				}
+				return true;
+			}
       
 			// if some of the threads do IO during the shut down they will
 			// need time to accomplish the IO. So, I give it to 'em 
 			// after the first attempt.
 			if ( j > 0) try { meMySelfI.sleep( 500);} catch (Exception e) {};
       
-			// try to shudown each thread in the group
+			// try to shudown each thread in the group. helper threads belong
+			// in workers, but don't let a stray one break the shutdown.
 			while ( i-- > 0) {
+				if ( !( list[i] instanceof FlickrFtpd ) ) {
+					list[i].interrupt();
+					continue;
+				}
 				FlickrFtpd tftp = (FlickrFtpd)list[i];
 				tftp.interrupt();      // first, do it politely
 				meMySelfI.yield();      // give 'em time to respond
@@ -90,19 +208,54 @@ public class FlickrFtpd extends Thread {
 		isDaemon = true;
 	}
 
-	public FlickrFtpd(Socket incoming) {
+	public FlickrFtpd(Socket incoming, long acceptNanos) {
 		super( tg, null, incoming.toString()); //~~ not a real good name....
 		this.incoming = incoming;
+		this.trace = new SessionTrace( acceptNanos);
+		if ( SessionRecorder.enabled() ) this.recorder = new SessionRecorder( trace.getId(), acceptNanos);
 	}
 
 	private void daemon() {
 
 		try {
+			localNode = InetAddress.getLocalHost();
+
+			if ( !stub_backends ) Class.forName("com.mysql.jdbc.Driver").newInstance();
+			if ( record_path != null ) SessionRecorder.open( record_path);
+			bookkeeping = new BookkeepingWriter( workers, stub_backends ? null : db_url, bookkeeping_flush_ms, bookkeeping_rows, bookkeeping_queue);
+			bookkeeping.start();
+
+			if ( cluster_file != null ) cluster = new ClusterRing( cluster_file, node_id);
+
+			datalink = new DataLinkTuner( datalink_rcvbuf, datalink_rcvbuf_min, datalink_rcvbuf_max);
+
+			if ( tls_keystore != null ) tls = new TlsSupport( tls_keystore, tls_keystore_password, tls_session_cache, tls_session_seconds);
+
+			disk = new DiskMonitor( workers, upload_root, disk_sample_ms, disk_hard_floor, disk_soft_floor,
+				disk_max_accept_delay, disk_slow_write_ns, disk_initial_avg_file);
+			disk.start();
+
+			quota = new QuotaService( workers, bookkeeping, QUOTA_USED, quota_flush_ms);
+			quota.start();
+
+			ingest = new IngestScheduler( workers, ingest_path, ingest_workers, ingest_small_bytes,
+				ingest_fast_weight, ingest_bulk_weight, ingest_quantum);
+
+			if ( snapshot_path != null ) {
+				warm = new WarmState( workers, snapshot_path, snapshot_ms, quota, ingest);
+				warm.load();
+				warm.start();
+			}
+
 			server = new ServerSocket(localPort);
 
 			while (true) {
 				Socket incoming = server.accept();
-				new FlickrFtpd( incoming ).start();
+				new FlickrFtpd( incoming, System.nanoTime() ).start();
+
+				// running out of spool: take on new sessions more slowly
+				long delay = disk.acceptDelayMillis();
+				if ( delay > 0 ) Thread.sleep( delay);
 			}
 		}
 
@@ -128,107 +281,274 @@ public class FlickrFtpd extends Thread {
 		boolean loggedIn = false;
 		int i, h1;
 		String di,str1,user="unknown",user_id="0";
-		InetAddress localNode;
 		byte dataBuffer[] = new byte[1024];
-		String command = null;
+		long command = 0;
 		StringBuffer statusMessage = new StringBuffer(40);
 		File targetFile = null;
+		QuotaService.Account account = null;
 
 		try {
 			// start mysql
-			Class.forName("com.mysql.jdbc.Driver").newInstance();
-			this.db_conn = DriverManager.getConnection(db_url);
-			this.db_stmt = this.db_conn.createStatement();
+			if ( !stub_backends ) {
+				Class.forName("com.mysql.jdbc.Driver").newInstance();
+				this.db_conn = DriverManager.getConnection(db_url);
+				this.db_stmt = this.db_conn.createStatement();
+			}
 
-			this.db_stmt.executeUpdate("INSERT INTO test_table (name) VALUES ('hello world')");
+			bookkeeping.write( TEST_TABLE, new Object[] { "hello world" });
 
 			incoming.setSoTimeout(inactivityTimer);  // enforce I/O timeout
 			remoteNode = incoming.getInetAddress();
-			localNode = InetAddress.getLocalHost();
 
-			BufferedReader in = new BufferedReader(new InputStreamReader(incoming.getInputStream(), TELNET));
+			CommandParser in = new CommandParser( incoming.getInputStream());
 			PrintWriter out = new PrintWriter(new OutputStreamWriter( incoming.getOutputStream(), TELNET),true);
 			str1 = "220 Flickr FTP Server Ready";
 			out.println(str1);
-			if (log) System.out.println( remoteNode.getHostName()+" "+str1);
+			trace.mark( SessionTrace.GREETING);
+			if (log) System.out.println( DnsCache.nameFor( remoteNode)+" "+str1);
 
 			boolean done = false;
 			char dataType = 0;
+			long replied = System.nanoTime();
 
 			while ( !done ) {
 				statusMessage.setLength(0);
 
+				// reply-to-next-command is a round trip (plus think time) unless
+				// the client had already sent the next line
+				boolean pipelined = in.hasBuffered();
+
 				// obtain and tokenize command
-				String str = in.readLine();
-				if ( str == null ) break; // EOS reached
-				i = str.indexOf( ' ');
-				if ( i == -1 ) i = str.length();
-				command = str.substring( 0, i).toUpperCase().intern();
-				if ( log) System.out.print( user +"@"+remoteNode.getHostName()+" "+ (String)((command != "PASS")? str : "PASS ***"));
-				str = str.substring( i).trim();
+				if ( !in.next() ) break; // EOS reached
+				if ( !pipelined ) datalink.rttSample( remoteNode, System.nanoTime() - replied);
+				command = in.verb();
+				if ( recorder != null ) recorder.command( in);
+				if ( log) {
+					System.out.print( user);
+					System.out.print( '@');
+					System.out.print( DnsCache.nameFor( remoteNode));
+					System.out.print( ' ');
+					in.logLine( System.out);
+				}
 
 				try {
-					if ( command == "USER" ) {
+					if ( in.isTooLong() ) {
+
+						statusMessage.append( "500 Line too long");
 
-						user = str;
-						statusMessage.append( "331 Password");
+					} else if ( command == CommandParser.XFWD ) {
+
+						// a peer splicing a client through to us; take on the client's address
+						if ( cluster != null && !forwarded && !loggedIn && cluster.isMember( incoming.getInetAddress()) ) {
+							remoteNode = InetAddress.getByName( in.argString());	// numeric, no lookup
+							forwarded = true;
+						} else {
+							statusMessage.append( "500 Not from here");
+						}
 
-					} else if ( command == "PASS" ) {
+					} else if ( command == CommandParser.USER ) {
 
-						String pass = str;
+						trace.mark( SessionTrace.USER);
+						user = in.argString();
+
+						ClusterRing.Node owner = ( cluster != null && !forwarded ) ? cluster.ownerOf( user) : null;
+						if ( owner != null && !cluster.isSelf( owner) ) {
+							if ( cluster_proxy && !( incoming instanceof javax.net.ssl.SSLSocket ) ) {
+								if ( log) System.out.println( "\tproxying to " + owner);
+								proxyTo( owner, in, user);
+							} else {
+								statusMessage.append( "421 This account is served by ").append( owner.host).append( ' ').append( owner.port);
+							}
+							done = true;
+						} else {
+							statusMessage.append( "331 Password");
+						}
+
+					} else if ( command == CommandParser.PASS ) {
+
+						String pass = in.argString();
 						String pass_md5 = md5(pass);
 
-						this.db_rs = this.db_stmt.executeQuery("SELECT * FROM users WHERE email='"+user+"' AND password='"+pass_md5+"'");
-						if (this.db_rs.first()){
+						trace.mark( SessionTrace.PASS);
+						if ( stub_backends ) {
 							loggedIn = true;
-							user_id = this.db_rs.getString("id");
-							System.out.println("Account id is "+user_id);
+							user_id = Integer.toString( user.hashCode() & 0x7fffffff);
+							account = quota.login( user_id, null);
+						} else {
+							this.db_rs = this.db_stmt.executeQuery("SELECT * FROM users WHERE email='"+user+"' AND password='"+pass_md5+"'");
+							if (this.db_rs.first()){
+								loggedIn = true;
+								user_id = this.db_rs.getString("id");
+								account = quota.login( user_id, this.db_rs);
+								System.out.println("Account id is "+user_id);
+							}
 						}
+						trace.mark( SessionTrace.PASS_DONE);
 
 						statusMessage.append(loggedIn?"230 logged in User":"530 Login Incorrect");
 
+					} else if ( command == CommandParser.AUTH ) {
+
+						char mech = in.argChar( 0);
+						if ( tls == null ) {
+							statusMessage.append( "502 TLS not configured");
+						} else if ( incoming instanceof javax.net.ssl.SSLSocket ) {
+							statusMessage.append( "503 Already using TLS");
+						} else if ( mech != 'T' && mech != 'S' ) {
+							statusMessage.append( "504 Only AUTH TLS");
+						} else if ( in.hasBuffered() ) {
+							// commands pipelined behind AUTH would run as if they came over TLS
+							statusMessage.append( "503 Commands sent after AUTH before the TLS handshake");
+						} else {
+							// the reply goes out in the clear, then the client starts the handshake
+							out.println( "234 AUTH TLS successful");
+							if ( log) System.out.println( "\t234 AUTH TLS successful");
+							incoming = tls.wrap( incoming);
+							in.setInput( incoming.getInputStream());
+							out = new PrintWriter(new OutputStreamWriter( incoming.getOutputStream(), TELNET),true);
+						}
+
+					} else if ( command == CommandParser.PBSZ ) {
+
+						statusMessage.append( ( incoming instanceof javax.net.ssl.SSLSocket ) ? "200 PBSZ=0" : "503 AUTH first");
+
+					} else if ( command == CommandParser.PROT ) {
+
+						char level = in.argChar( 0);
+						if ( !( incoming instanceof javax.net.ssl.SSLSocket ) ) {
+							statusMessage.append( "503 AUTH first");
+						} else if ( level == 'P' || level == 'C' ) {
+							protectData = ( level == 'P' );
+							statusMessage.append( COMMAND_OK);
+						} else {
+							statusMessage.append( "536 Only C or P");
+						}
+
 					} else if ( !loggedIn ) {
 
 						statusMessage.append( "530 Not logged in");
 
-					} else if ( command == "RETR" ) {
+					} else if ( command == CommandParser.RETR ) {
 
 						statusMessage.append( "999 Not likely");
 
-					} else if ( command == "STOR" ) {
+					} else if ( command == CommandParser.STOR && restartOffset > new File( upload_root + "/" + spoolName( user_id, in.argString())).length() ) {
+
+						// resuming past the end would leave a hole the digest doesn't cover
+						restartOffset = 0;
+						statusMessage.append( "554 Restart offset past end of file");
+
+					} else if ( command == CommandParser.STOR && !reserveSpace() ) {
+
+						// refuse before the data connection, so no bandwidth is wasted
+						statusMessage.append( "452 Insufficient storage space");
+
+					} else if ( command == CommandParser.STOR ) {
 
 						out.println( BINARY_XFER);
 
-						// trim a leading slash off the filename if there is one
-						if (str.substring(0, 1).equals("/")) str = str.substring(1);
-						String filename = user_id + "_" + str;
+						String filename = spoolName( user_id, in.argString());
 						// TODO: sanitise filename
 						targetFile = new File(upload_root + "/" + filename);
 
 						RandomAccessFile dataFile = null;
 						InputStream      inStream = null;
+						IngestPipe       pipe = null;
+						long             written = 0;
+						long             firstByte = 0;
 						OutputStream     outStream = null;
 						BufferedReader br = null;
 						PrintWriter pw = null;
 
 						try {
 							int amount;
+							trace.resetTransfer();
 							dataSocket = setupDataLink();
 
 							// ensure timeout on reads.
 							dataSocket.setSoTimeout( inactivityTimer);
               
 							dataFile = new RandomAccessFile( targetFile, "rw");
+							MessageDigest sha = MessageDigest.getInstance( "SHA-256");
+
+							// resuming: the digest has to cover what's already there
+							if ( restartOffset > 0 ) {
+								if ( restartOffset > dataFile.length() ) throw new IOException( "Restart offset past end of file");
+								long left = restartOffset;
+								while ( left > 0 && (amount = dataFile.read( dataBuffer, 0, (int)Math.min( left, dataBuffer.length))) != -1 ) {
+									sha.update( dataBuffer, 0, amount);
+									left -= amount;
+								}
+								dataFile.seek( restartOffset);
+							}
+
+							// a resumed file has to be ingested from the spool, and so
+							// does this one if the scheduler has no slot to spare
+							if ( pipelined_ingest && restartOffset == 0 ) {
+								try {
+									pipe = ingest.startPipe( ingest_stream_path + " " + user_id + " " + filename, ingest_pipe_chunks, dataBuffer.length, ingest_pipe_timeout);
+									if ( pipe != null ) trace.mark( SessionTrace.INGEST_ENQUEUE);
+								}
+								catch ( IOException e ) {
+									if ( debug) e.printStackTrace();
+								}
+							}
 
 							inStream = dataSocket.getInputStream();
-							while ( (amount = inStream.read( dataBuffer)) != -1 ) dataFile.write( dataBuffer, 0, amount);
+							if ( transferMode == 'Z' ) inStream = new ModeZInputStream( inStream, modez_limit, dataBuffer.length);
+							while ( (amount = inStream.read( dataBuffer)) != -1 ) {
+								if ( firstByte == 0 ) {
+									firstByte = System.nanoTime();
+									trace.mark( SessionTrace.FIRST_BYTE);
+								}
+
+								// bigger than we reserved for: reserve more or stop now
+								written += amount;
+								if ( written > reservedBytes ) {
+									long more = Math.max( disk.averageFileSize(), written - reservedBytes);
+									if ( !disk.reserve( more) ) throw new IOException( "Insufficient storage space");
+									reservedBytes += more;
+								}
+
+								if ( !quota.charge( account, amount) ) throw new IOException( "Upload quota exceeded");
+
+								long t0 = System.nanoTime();
+								dataFile.write( dataBuffer, 0, amount);
+								disk.recordWrite( System.nanoTime() - t0);
+								sha.update( dataBuffer, 0, amount);
+								if ( pipe != null && !pipe.offer( dataBuffer, amount) ) pipe = null;
+							}
+							trace.mark( SessionTrace.LAST_BYTE);
+							if ( recorder != null ) recorder.data( written);
+							if ( firstByte != 0 ) datalink.transferDone( remoteNode, written, System.nanoTime() - firstByte, dataSocket.getReceiveBufferSize());
+
+							// drop anything left over from an older, longer copy
+							dataFile.setLength( dataFile.getFilePointer());
+							dataFile.close();
+							dataFile = null;
+							String digest = hex( sha.digest());
+							UploadIndex.put( user_id, filename, targetFile, digest);
+
+							// don't say 226 until the upload row is durable
+							bookkeeping.writeAcked( UPLOADS, new Object[] { user_id, filename, Long.valueOf( targetFile.length()), digest })
+								.await( bookkeeping_ack_ms);
 
 							statusMessage.append( XFER_COMPLETE);
 
-							shell_exec(ingest_path + " " + user_id + " " + filename);
+							// the pipe's process finishes on its own time, not the client's;
+							// if it fails the spool file is queued instead
+							IngestScheduler.Job job = new IngestScheduler.Job( user_id, filename, targetFile.length(), trace.getId());
+							if ( pipe != null ) {
+								pipe.finish( job);
+								pipe = null;
+							} else {
+								ingest.submit( job);
+								trace.mark( SessionTrace.INGEST_ENQUEUE);
+							}
 						}
 
 						finally {
+							if ( pipe != null ) pipe.abandon();
 							try {if ( inStream   != null ) inStream.close();}
 							catch ( Exception e1 ) {};
 							try {if ( outStream  != null ) outStream.close();}
@@ -238,68 +558,108 @@ public class FlickrFtpd extends Thread {
 							try {if ( dataSocket != null ) dataSocket.close();}
 							catch ( Exception e1 ) {};
 							dataSocket = null;
+							restartOffset = 0;
+							allocSize = 0;
+							disk.release( reservedBytes, written);
+							reservedBytes = 0;
 						}
 
-					} else if ( command == "REST" ) {
+					} else if ( command == CommandParser.REST ) {
 
-						statusMessage.append("502 Sorry, no resuming");
+						long offset = in.argLong();
+						if ( offset < 0 ) {
+							statusMessage.append( "501 Bad restart offset");
+						} else {
+							restartOffset = offset;
+							statusMessage.append( "350 Restarting at ").append( offset);
+						}
 
-					} else if ( command == "TYPE" ) {
+					} else if ( command == CommandParser.ALLO ) {
 
-						if ( Character.toUpperCase( str.charAt( 0)) == 'I'){
+						long size = in.argLong();
+						if ( size < 0 ) {
+							statusMessage.append( "501 Bad allocation size");
+						} else if ( !disk.canFit( size) ) {
+							statusMessage.append( "452 Insufficient storage space");
+						} else {
+							allocSize = size;
+							statusMessage.append( COMMAND_OK);
+						}
+
+					} else if ( command == CommandParser.TYPE ) {
+
+						if ( in.argChar( 0) == 'I'){
 							statusMessage.append( COMMAND_OK);
 						} else {
 							statusMessage.append( "504 Only binary baybee");
 						}
 
 					} else if (
-						command == "DELE" || 
-						command == "RMD" || 
-						command == "XRMD" || 
-						command == "MKD" || 
-						command == "XMKD" || 
-						command == "RNFR" || 
-						command == "RNTO" || 
-						command == "CDUP" || 
-						command == "XCDUP" ||
-						command == "CWD" ||
-						command == "SIZE" ||
-						command == "MDTM"
+						command == CommandParser.DELE || 
+						command == CommandParser.RMD || 
+						command == CommandParser.XRMD || 
+						command == CommandParser.MKD || 
+						command == CommandParser.XMKD || 
+						command == CommandParser.RNFR || 
+						command == CommandParser.RNTO || 
+						command == CommandParser.CDUP || 
+						command == CommandParser.XCDUP ||
+						command == CommandParser.CWD
 					) {
 
 						statusMessage.append("502 None of that malarky!");
 
-					} else if ( command == "QUIT" ) {
+					} else if (
+						command == CommandParser.SIZE ||
+						command == CommandParser.MDTM ||
+						command == CommandParser.HASH ||
+						command == CommandParser.XSHA256
+					) {
+
+						// answered from the upload index, never by reading the file
+						String filename = spoolName( user_id, in.argString());
+						UploadIndex.Entry entry = UploadIndex.get( user_id, filename, new File( upload_root + "/" + filename));
+
+						if ( entry == null ) {
+							statusMessage.append( "550 No such file");
+						} else if ( command == CommandParser.SIZE ) {
+							statusMessage.append( "213 ").append( entry.size);
+						} else if ( command == CommandParser.MDTM ) {
+							SimpleDateFormat fmt = new SimpleDateFormat( "yyyyMMddHHmmss");
+							fmt.setTimeZone( TimeZone.getTimeZone( "GMT"));
+							statusMessage.append( "213 ").append( fmt.format( new java.util.Date( entry.mtime)));
+						} else if ( entry.sha256 == null ) {
+							statusMessage.append( "550 No digest recorded for that file");
+						} else if ( command == CommandParser.HASH ) {
+							statusMessage.append( "213 SHA-256 0-").append( Math.max( 0, entry.size - 1))
+								.append( ' ').append( entry.sha256).append( ' ').append( in.argString());
+						} else {
+							statusMessage.append( "250 ").append( entry.sha256);
+						}
+
+					} else if ( command == CommandParser.QUIT ) {
 
 						statusMessage.append( COMMAND_OK).append( "GOOD BYE");
 						done = true;
 
-					} else if ( command == "PWD" | command == "XPWD" ) {
+					} else if ( command == CommandParser.PWD | command == CommandParser.XPWD ) {
 
 						statusMessage.append( "257 \"/\" is current directory");
 
-					} else if ( command == "PORT" ) {
-
-						int lng,lng1,lng2, ip2;
-						String a1="",a2="";
-						lng = str.length() - 1;
-						lng2 = str.lastIndexOf(",");
-						lng1 = str.lastIndexOf(",",lng2-1);
-
-						for ( i=lng1+1;i<lng2;i++ ) {
-							a1 = a1 + str.charAt(i);
-						}
+					} else if ( command == CommandParser.PORT | command == CommandParser.EPRT ) {
 
-						for ( i=lng2+1;i<=lng;i++ ) {
-							a2 = a2 + str.charAt(i);
+						int port = ( command == CommandParser.PORT ) ? in.portArg() : in.eprtArg();
+						if ( port <= 0 ) {
+							statusMessage.append( "501 Bad port specification");
+						} else {
+							remotePort = port;
+							if ( passiveSocket != null )  try { passiveSocket.close();} catch (Exception e) {};
+							passiveSocket = null;
+							trace.mark( SessionTrace.DATA_CMD);
+							statusMessage.append( COMMAND_OK).append( remotePort);
 						}
 
-						remotePort = Integer.parseInt(a1);
-						ip2 = Integer.parseInt(a2);
-						remotePort = (remotePort <<8) + ip2;
-						statusMessage.append( COMMAND_OK).append( remotePort);
-
-					} else if ( command == "LIST" | command == "NLST" ) {
+					} else if ( command == CommandParser.LIST | command == CommandParser.NLST ) {
 
 						try {
 
@@ -308,7 +668,7 @@ public class FlickrFtpd extends Thread {
               
 							PrintWriter out2 = new PrintWriter( dataSocket.getOutputStream(),true);
 
-							if ((command == "NLST")) {
+							if ((command == CommandParser.NLST)) {
 								out2.println(".");
 								out2.println("..");
 							} else {
@@ -329,37 +689,39 @@ public class FlickrFtpd extends Thread {
 							dataSocket = null;
 						}
 
-					} else if ( command == "NOOP" ) {
+					} else if ( command == CommandParser.NOOP ) {
 
 						statusMessage.append( COMMAND_OK);
 
-					} else if ( command == "SYST" ) {
+					} else if ( command == CommandParser.SYST ) {
 
 						statusMessage.append( "215 UNIX"); // allows NS to do long dir
 
-					} else if ( command == "MODE" ) {
+					} else if ( command == CommandParser.MODE ) {
 
-						if ( Character.toUpperCase( str.charAt( 0)) == 'S'){
+						char mode = in.argChar( 0);
+						if ( in.argLength() == 1 && (mode == 'S' || mode == 'Z') ){
+							transferMode = mode;
 							statusMessage.append( COMMAND_OK);
 						} else {
 							statusMessage.append( "504");
 						}
 
-					} else if ( command == "STRU" ) {
+					} else if ( command == CommandParser.STRU ) {
 
-						if ( str.equals( "F") ) {
+						if ( in.argLength() == 1 && in.argChar( 0) == 'F' ) {
 							statusMessage.append( COMMAND_OK);
 						} else {
 							statusMessage.append( "504");
 						}
 
-					} else if ( command == "PASV" ) {
+					} else if ( command == CommandParser.PASV ) {
 
 						try {
 
 							int num = 0, j = 0;
 							if ( passiveSocket != null )  try { passiveSocket.close();} catch (Exception e) {};
-							passiveSocket = new ServerSocket( 0); // any port
+							passiveSocket = datalink.listen( remoteNode);
 
 							// ensure timeout on reads.
 							passiveSocket.setSoTimeout( inactivityTimer);
@@ -374,6 +736,7 @@ public class FlickrFtpd extends Thread {
 							j = num & 0xff;
 							statusMessage.append( j);
 							statusMessage.append( ')');
+							trace.mark( SessionTrace.DATA_CMD);
 						}
 						catch ( Exception e) {
 							try {if ( passiveSocket != null ) passiveSocket.close();}
@@ -383,7 +746,7 @@ public class FlickrFtpd extends Thread {
 						}
 
 					} else {
-						statusMessage.append( "502 unimplemented ").append( command);
+						statusMessage.append( "502 unimplemented ").append( in.verbString());
 					}
 				}
 
@@ -400,8 +763,10 @@ public class FlickrFtpd extends Thread {
 				}
 
 				// send result status to remote
-				out.println( statusMessage);
-				if ( log) System.out.println( "\t" + statusMessage);
+				if ( statusMessage.length() > 0 ) out.println( statusMessage);
+				replied = System.nanoTime();
+				if ( recorder != null ) recorder.reply( statusMessage);
+				if ( log) System.out.println( ( statusMessage.length() > 0 ) ? "\t" + statusMessage : "");
 			}
 		}
 
@@ -413,6 +778,9 @@ public class FlickrFtpd extends Thread {
 
 		finally // exiting server instance
 		{
+			if ( log) trace.emit( System.out, user, (remoteNode != null) ? remoteNode.getHostAddress() : "-");
+			if ( recorder != null ) recorder.end();
+
 			// tear down mysql
 			if (this.db_rs    != null) { try { this.db_rs.close();    } catch (SQLException SQLE) { ; } }
 			if (this.db_stmt  != null) { try { this.db_stmt.close();  } catch (SQLException SQLE) { ; } }
@@ -462,9 +830,74 @@ public class FlickrFtpd extends Thread {
 
 	}
   
+	// splice the rest of this session through to the node that owns the
+	// user. the owner is told the real client address first, and its
+	// greeting is swallowed since the client already had ours; data
+	// connections go straight to the owner (its PASV reply names itself,
+	// and it honours PORT against the forwarded address).
+	private void proxyTo(ClusterRing.Node owner, CommandParser in, String user) throws IOException {
+		final Socket peer = new Socket();
+		try {
+			peer.connect( new InetSocketAddress( owner.host, owner.port), 10000);
+			peer.setSoTimeout( inactivityTimer);
+			final InputStream fromPeer = peer.getInputStream();
+			OutputStream toPeer = peer.getOutputStream();
+
+			int c;
+			while ( (c = fromPeer.read()) != -1 && c != '\n' ) ;	// 220 greeting
+
+			// once spliced, one direction can sit idle for as long as the
+			// other is busy (a long upload says nothing on the control
+			// channel), so no read timeouts: the owner's own inactivity
+			// timer ends idle sessions, and keepalive catches dead peers
+			peer.setSoTimeout( 0);
+			peer.setKeepAlive( true);
+			incoming.setSoTimeout( 0);
+			incoming.setKeepAlive( true);
+
+			toPeer.write( ("XFWD " + remoteNode.getHostAddress() + "\r\nUSER " + user + "\r\n").getBytes( TELNET));
+			in.drainBuffered( toPeer);
+
+			final OutputStream toClient = incoming.getOutputStream();
+			Thread back = new Thread( workers, "FlickrFtpd-proxy") {
+				public void run() {
+					try { copy( fromPeer, toClient); }
+					catch ( IOException e ) {};
+					try { incoming.close(); } catch ( Exception e ) {};
+				}
+			};
+			back.setDaemon( true);
+			back.start();
+
+			try {
+				copy( incoming.getInputStream(), toPeer);
+			}
+			catch ( IOException e ) {};	// client went away, or the peer did and closed us
+		}
+		finally {
+			try { peer.close(); } catch ( Exception e ) {};
+		}
+	}
+
+	private static void copy(InputStream from, OutputStream to) throws IOException {
+		byte[] b = new byte[ 4096];
+		int n;
+		while ( (n = from.read( b)) != -1 ) {
+			to.write( b, 0, n);
+			to.flush();
+		}
+	}
+
 	private final Socket setupDataLink() throws java.io.IOException {
 
-		Socket dataSocket =  ( passiveSocket != null) ? passiveSocket.accept() : new Socket( remoteNode, remotePort);
+		Socket dataSocket =  ( passiveSocket != null) ? passiveSocket.accept() : datalink.connect( remoteNode, remotePort, inactivityTimer);
+		trace.mark( SessionTrace.DATA_CONNECT);
+
+		// the client's data handshake normally resumes the control session
+		if ( protectData ) {
+			dataSocket.setSoTimeout( inactivityTimer);
+			dataSocket = tls.wrap( dataSocket);
+		}
 
 		// ensure timeout on reads.
 		dataSocket.setSoTimeout( inactivityTimer);
@@ -479,45 +912,78 @@ public class FlickrFtpd extends Thread {
 		try {
 			MessageDigest messageDigest = MessageDigest.getInstance("MD5");
 			messageDigest.update(data.getBytes());
-			byte[] digestBytes = messageDigest.digest();
+			sb.append(hex(messageDigest.digest()));
+		}
+		catch (Exception ex) {
+			System.out.println(ex.getMessage());
+		}
+
+		return sb.toString();
+	}
 
-			/* convert to hexstring */
-			String hex = null;
+	private static String hex(byte[] digestBytes){
 
-			for (int i = 0; i < digestBytes.length; i++) {
-				hex = Integer.toHexString(0xFF & digestBytes[i]);
+		StringBuffer sb = new StringBuffer(digestBytes.length * 2);
 
-				if (hex.length() < 2) {
-					sb.append("0");
-				}
-				sb.append(hex);
+		/* convert to hexstring */
+		String hex = null;
+
+		for (int i = 0; i < digestBytes.length; i++) {
+			hex = Integer.toHexString(0xFF & digestBytes[i]);
+
+			if (hex.length() < 2) {
+				sb.append("0");
 			}
-		}
-		catch (Exception ex) {
-			System.out.println(ex.getMessage());
+			sb.append(hex);
 		}
 
 		return sb.toString();
 	}
 
+	// hold spool space for the next STOR: the ALLO size if we got one,
+	// otherwise what an upload usually takes
+	private boolean reserveSpace() {
+		long need = ( allocSize > 0 ) ? allocSize : disk.averageFileSize();
+		if ( !disk.reserve( need) ) {
+			allocSize = 0;
+			return false;
+		}
+		reservedBytes = need;
+		return true;
+	}
+
+	// spool file name for a client path: trim a leading slash off the
+	// filename if there is one and prefix the account id
+	private static String spoolName(String user_id, String path) {
+		if (path.startsWith("/")) path = path.substring(1);
+		return user_id + "_" + path;
+	}
 
-	private String shell_exec(String cmdline) {
-		String line = "";
+
+	static String shell_exec(String cmdline) {
+		StringBuffer sb = new StringBuffer();
 		try {
 
 			// windows
-		 	//Process p = Runtime.getRuntime().exec(cmdline);
+		 	//ProcessBuilder pb = new ProcessBuilder(cmdline);
 			// linux
-			Process p = Runtime.getRuntime().exec(new String[] { "/bin/sh", "-c", cmdline });
+			ProcessBuilder pb = new ProcessBuilder(new String[] { "/bin/sh", "-c", cmdline });
+			pb.redirectErrorStream( true);	// a full stderr pipe would hang the child
+			Process p = pb.start();
 
 		 	BufferedReader input = new BufferedReader (new InputStreamReader(p.getInputStream()));
-		 	while ((line += input.readLine()) != null) {
+			String l;
+		 	while ((l = input.readLine()) != null) {
+				sb.append( l).append( '\n');
 		   	}
 		 	input.close();
+			p.waitFor();
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();	// let the caller see it
 		} catch (Exception err) {
 		 	err.printStackTrace();
 		}
-		return line;
+		return sb.toString();
 	}	
 
 }
@@ -0,0 +1,87 @@
+import java.io.*;
+import java.util.Random;
+
+// end-to-end latency of an upload plus its ingest, ingesting from the spool
+// file after the last byte versus streaming through an IngestPipe while the
+// upload is still arriving. the upload is simulated by writing the spool
+// file at a fixed rate (the client's bandwidth); gzip stands in for the
+// ingest process, as it reads everything and costs CPU per byte.
+//
+//	java IngestBenchmark [MB/s] [size MB ...]
+public class IngestBenchmark {
+
+	private static final int CHUNK = 64 << 10;
+
+	public static void main(String[] args) throws Exception {
+		double rate = ( args.length > 0 ) ? Double.parseDouble( args[0]) : 40;
+		int[] sizes = { 8, 32, 128 };
+		if ( args.length > 1 ) {
+			sizes = new int[ args.length - 1];
+			for ( int i = 1; i < args.length; i++ ) sizes[i - 1] = Integer.parseInt( args[i]);
+		}
+		FlickrFtpd.log = false;
+
+		File dir = new File( System.getProperty( "java.io.tmpdir"), "ingest-bench");
+		dir.mkdirs();
+		File spool = new File( dir, "spool");
+		File marker = new File( dir, "done");
+		IngestScheduler scheduler = new IngestScheduler( FlickrFtpd.workers, "true", 1, 1L << 40, 1, 1, 1L << 40);
+
+		// half random, half text: gzip has to work but gets somewhere
+		byte[] chunk = new byte[ CHUNK];
+		new Random( 1).nextBytes( chunk);
+		for ( int i = 0; i < CHUNK; i += 2 ) chunk[i] = (byte)('a' + i % 26);
+
+		System.out.println( "upload at " + rate + " MB/s, ingest is gzip -6");
+		for ( int s = 0; s < sizes.length; s++ ) {
+			long bytes = (long)sizes[s] << 20;
+
+			long t0 = System.nanoTime();
+			upload( spool, chunk, bytes, rate, null);
+			long uploaded = System.nanoTime() - t0;
+			FlickrFtpd.shell_exec( "gzip -6 < " + spool + " > /dev/null");
+			long spooled = System.nanoTime() - t0;
+
+			marker.delete();
+			// the marker goes down before the shell exits, so the last
+			// round's pipe can still hold the only slot
+			IngestPipe pipe;
+			while ( true ) {
+				t0 = System.nanoTime();
+				pipe = scheduler.startPipe( "gzip -6 > /dev/null; s=$?; touch " + marker + "; exit $s", 256, CHUNK, 2000);
+				if ( pipe != null ) break;
+				Thread.sleep( 1);
+			}
+			upload( spool, chunk, bytes, rate, pipe);
+			pipe.finish( new IngestScheduler.Job( "bench", spool.getName(), bytes, 0));
+			while ( !marker.exists() ) Thread.sleep( 1);
+			long piped = System.nanoTime() - t0;
+
+			System.out.println( sizes[s] + "MB: upload " + uploaded / 1000000 + "ms"
+				+ ", spool then ingest " + spooled / 1000000 + "ms"
+				+ ", pipelined " + piped / 1000000 + "ms");
+		}
+		spool.delete();
+		marker.delete();
+	}
+
+	// write the spool file no faster than rate MB/s, teeing into pipe if there is one
+	private static void upload(File spool, byte[] chunk, long bytes, double rate, IngestPipe pipe) throws Exception {
+		OutputStream out = new FileOutputStream( spool);
+		long t0 = System.nanoTime();
+		try {
+			for ( long done = 0; done < bytes; ) {
+				int n = (int)Math.min( chunk.length, bytes - done);
+				out.write( chunk, 0, n);
+				if ( pipe != null && !pipe.offer( chunk, n) ) throw new IOException( "ingest pipe fell behind");
+				done += n;
+				long due = t0 + (long)(done / (rate * 1048576) * 1e9);
+				long wait = due - System.nanoTime();
+				if ( wait > 0 ) Thread.sleep( wait / 1000000, (int)(wait % 1000000));
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
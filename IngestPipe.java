@@ -0,0 +1,146 @@
+import java.io.*;
+import java.util.concurrent.*;
+
+// pipelined ingest: the ingest process is started when the data connection
+// opens and STOR tees every chunk into its stdin through a bounded queue, so
+// parsing and hashing on the ingest side run while the upload is still on
+// the wire. the spool file is written as usual; if the pipe falls behind or
+// the ingest process fails, the spool file is ingested through the scheduler
+// instead. pipes are only started by IngestScheduler.startPipe(), and hold
+// one of its slots until their process exits.
+final class IngestPipe {
+
+	private static final byte[] EOF = new byte[0];
+
+	private final IngestScheduler scheduler;
+	private final long started = System.nanoTime();
+	private final Process process;
+	private final OutputStream stdin;
+	private final BlockingQueue<byte[]> full;
+	private final BlockingQueue<byte[]> free;	// chunks carry a 4-byte length prefix
+	private final Thread writer;
+	private final long offerTimeout;
+	private volatile boolean broken = false;
+
+	// guarded by this: what to queue if the process fails, and whether it
+	// already has
+	private IngestScheduler.Job fallback = null;
+	private boolean exited = false;
+
+	IngestPipe(IngestScheduler scheduler, String cmdline, int chunks, int chunkSize, long offerTimeoutMillis) throws IOException {
+		this.scheduler = scheduler;
+		ProcessBuilder pb = new ProcessBuilder( new String[] { "/bin/sh", "-c", cmdline });
+		pb.redirectErrorStream( true);
+		pb.redirectOutput( ProcessBuilder.Redirect.INHERIT);
+		this.process = pb.start();
+		this.stdin = process.getOutputStream();
+		this.full = new ArrayBlockingQueue<byte[]>( chunks + 1);
+		this.free = new ArrayBlockingQueue<byte[]>( chunks);
+		for ( int i = 0; i < chunks; i++ ) free.add( new byte[ chunkSize + 4]);
+		this.offerTimeout = offerTimeoutMillis;
+
+		this.writer = new Thread( FlickrFtpd.workers, "FlickrFtpd-ingest-pipe") {
+			public void run() {
+				drain();
+				exited( waitForProcess());
+			}
+		};
+		writer.setDaemon( true);
+		writer.start();
+	}
+
+	// copy a chunk into the pipe. returns false once the pipe has been given
+	// up on, after which the caller should stop offering.
+	boolean offer(byte[] b, int len) {
+		if ( broken ) return false;
+		try {
+			byte[] chunk = free.poll( offerTimeout, TimeUnit.MILLISECONDS);
+			if ( chunk == null || len > chunk.length - 4 ) {	// ingest isn't keeping up
+				abandon();
+				return false;
+			}
+			chunk[0] = (byte)(len >>> 24);
+			chunk[1] = (byte)(len >>> 16);
+			chunk[2] = (byte)(len >>> 8);
+			chunk[3] = (byte)len;
+			System.arraycopy( b, 0, chunk, 4, len);
+			full.put( chunk);
+			return true;
+		}
+		catch ( InterruptedException e ) {
+			abandon();
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// signal end of data. doesn't wait for the ingest process: the writer
+	// thread does, and queues fallback (ingest from the spool file) with the
+	// scheduler if the process doesn't take the whole file cleanly.
+	void finish(IngestScheduler.Job fallback) {
+		synchronized ( this ) {
+			if ( !exited ) {
+				this.fallback = fallback;
+				fallback = null;
+			}
+		}
+		if ( fallback != null ) {	// already gone
+			scheduler.submit( fallback);
+			return;
+		}
+		if ( !full.offer( EOF) ) abandon();	// can't happen: full has room for every chunk plus EOF
+	}
+
+	void abandon() {
+		broken = true;
+		writer.interrupt();
+		process.destroy();
+	}
+
+	// true if the process took everything and exited cleanly
+	private boolean waitForProcess() {
+		if ( broken ) {
+			process.destroy();
+			return false;
+		}
+		try {
+			return process.waitFor() == 0 && !broken;
+		}
+		catch ( InterruptedException e ) {	// abandoned after end of data
+			process.destroy();
+			return false;
+		}
+	}
+
+	private void exited(boolean ok) {
+		IngestScheduler.Job f;
+		synchronized ( this ) {
+			exited = true;
+			f = fallback;
+		}
+		scheduler.release();
+		if ( f == null ) return;	// upload didn't finish, nothing to ingest
+		if ( ok ) {
+			SessionTrace.ingestDone( FlickrFtpd.log ? System.out : null, f.sessionId, f.filename, started);
+		} else {
+			scheduler.submit( f);
+		}
+	}
+
+	private void drain() {
+		try {
+			while ( true ) {
+				byte[] chunk = full.take();
+				if ( chunk == EOF ) break;
+				int len = ((chunk[0] & 0xff) << 24) | ((chunk[1] & 0xff) << 16) | ((chunk[2] & 0xff) << 8) | (chunk[3] & 0xff);
+				stdin.write( chunk, 4, len);
+				free.put( chunk);
+			}
+			stdin.close();
+		}
+		catch ( Exception e ) {		// ingest died or we were told to stop
+			broken = true;
+			try { stdin.close(); } catch ( Exception e1 ) {};
+		}
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// runs spool-file ingest jobs off the session threads. jobs are split into a
+// fast lane for small files and a bulk lane for the rest; the lanes share the
+// workers in proportion to their weights, and inside each lane users take
+// turns by deficit round robin on bytes, so one user's 5,000-photo dump
+// can't sit in front of everyone else's single uploads. streaming ingest
+// pipes (see IngestPipe) take a worker slot too, and only when nothing is
+// waiting, so the number of ingest processes stays at the worker count.
+final class IngestScheduler {
+
+	static final class Job {
+		// ids stay unique across restarts, so the completion log (see
+		// WarmState) can't mistake a new job for one from the snapshot
+		private static final java.util.concurrent.atomic.AtomicLong nextId =
+			new java.util.concurrent.atomic.AtomicLong( System.currentTimeMillis() * 1000);
+
+		final long id;
+		final String userId;
+		final String filename;
+		final long bytes;
+		final long sessionId;	// 0 for jobs restored from a snapshot
+		long enqueued;
+
+		Job(String userId, String filename, long bytes, long sessionId) {
+			this( nextId.getAndIncrement(), userId, filename, bytes, sessionId);
+		}
+
+		private Job(long id, String userId, String filename, long bytes, long sessionId) {
+			this.id = id;
+			this.userId = userId;
+			this.filename = filename;
+			this.bytes = bytes;
+			this.sessionId = sessionId;
+		}
+	}
+
+	private static final class UserQueue {
+		final String userId;
+		final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+		long deficit = 0;
+		boolean inTurn = false;
+		UserQueue(String userId) {
+			this.userId = userId;
+		}
+	}
+
+	private static final class Lane {
+		final int weight;
+		final long quantum;
+		final LatencyHistogram wait;
+		final ArrayDeque<UserQueue> active = new ArrayDeque<UserQueue>();
+		final HashMap<String, UserQueue> byUser = new HashMap<String, UserQueue>();
+		int credits;
+		int size = 0;
+
+		Lane(String name, int weight, long quantum) {
+			this.weight = weight;
+			this.quantum = quantum;
+			this.credits = weight;
+			this.wait = new LatencyHistogram( "ingest_wait_" + name);
+		}
+
+		void add(Job j) {
+			UserQueue uq = byUser.get( j.userId);
+			if ( uq == null ) {
+				uq = new UserQueue( j.userId);
+				byUser.put( j.userId, uq);
+				active.addLast( uq);
+			}
+			uq.jobs.addLast( j);
+			size++;
+		}
+
+		// deficit round robin: each turn a user is credited one quantum of
+		// bytes and sends jobs while its head job fits in what it has
+		Job poll() {
+			while ( !active.isEmpty() ) {
+				UserQueue uq = active.peekFirst();
+				if ( !uq.inTurn ) {
+					uq.deficit += quantum;
+					uq.inTurn = true;
+				}
+				Job head = uq.jobs.peekFirst();
+				if ( head.bytes <= uq.deficit ) {
+					uq.deficit -= head.bytes;
+					uq.jobs.pollFirst();
+					size--;
+					if ( uq.jobs.isEmpty() ) {	// idle users don't bank credit
+						active.pollFirst();
+						byUser.remove( uq.userId);
+					}
+					return head;
+				}
+				uq.inTurn = false;
+				active.addLast( active.pollFirst());
+			}
+			return null;
+		}
+	}
+
+	private final String command;	// run as command + " " + user + " " + file
+	private final long smallBytes;
+	private final int slots;
+	private int running = 0;	// jobs and pipes with a process going
+	private final Lane fast;
+	private final Lane bulk;
+	private final LatencyHistogram run = new LatencyHistogram( "ingest_run");
+	private volatile WarmState completions;	// told about each finished job, if set
+	private final Set<Job> inFlight = new HashSet<Job>();	// taken by a worker, not finished
+
+	IngestScheduler(ThreadGroup group, String command, int workers, long smallBytes, int fastWeight, int bulkWeight, long quantum) {
+		this.command = command;
+		this.smallBytes = smallBytes;
+		this.slots = workers;
+		this.fast = new Lane( "fast", fastWeight, quantum);
+		this.bulk = new Lane( "bulk", bulkWeight, quantum);
+
+		for ( int i = 0; i < workers; i++ ) {
+			Thread t = new Thread( group, "FlickrFtpd-ingest-" + i) {
+				public void run() { work(); }
+			};
+			t.setDaemon( true);
+			t.start();
+		}
+	}
+
+	synchronized void submit(Job j) {
+		j.enqueued = System.nanoTime();
+		(( j.bytes <= smallBytes ) ? fast : bulk).add( j);
+		notifyAll();
+	}
+
+	// start a streaming ingest pipe, if a slot is free and no queued job is
+	// waiting for one. returns null otherwise; the caller then ingests from
+	// the spool file through submit() as usual.
+	IngestPipe startPipe(String cmdline, int chunks, int chunkSize, long offerTimeoutMillis) throws IOException {
+		synchronized ( this ) {
+			if ( running >= slots || fast.size + bulk.size > 0 ) return null;
+			running++;
+		}
+		try {
+			return new IngestPipe( this, cmdline, chunks, chunkSize, offerTimeoutMillis);
+		}
+		catch ( IOException e ) {
+			release();
+			throw e;
+		}
+	}
+
+	// a job or pipe's process has exited
+	synchronized void release() {
+		running--;
+		notifyAll();
+	}
+
+	synchronized int backlog() {
+		return fast.size + bulk.size;
+	}
+
+	// everything still waiting, for snapshots
+	// queued and running jobs
+	synchronized List<Job> pending() {
+		List<Job> l = new ArrayList<Job>( inFlight);
+		Lane[] lanes = { fast, bulk };
+		for ( int i = 0; i < lanes.length; i++ )
+			for ( UserQueue uq : lanes[i].active ) l.addAll( uq.jobs);
+		return l;
+	}
+
+	void setCompletionLog(WarmState w) {
+		completions = w;
+	}
+
+	// only the user and file go in: the command is rebuilt from the current
+	// config when the job runs. running jobs go in too, in case we stop
+	// before they finish.
+	void writeSnapshot(DataOutputStream out) throws IOException {
+		List<Job> l = pending();
+		out.writeInt( l.size());
+		for ( int i = 0; i < l.size(); i++ ) {
+			Job j = l.get( i);
+			out.writeLong( j.id);
+			WarmState.putString( out, j.userId);
+			WarmState.putString( out, j.filename);
+			out.writeLong( j.bytes);
+		}
+	}
+
+	// jobs that were waiting or running when the snapshot was taken, less
+	// the ones whose ids are in done (finished since). nothing is queued
+	// until the returned Runnable is run.
+	Runnable readSnapshot(ByteBuffer b, Set<Long> done) throws IOException {
+		final List<Job> l = new ArrayList<Job>();
+		for ( int n = b.getInt(); n > 0; n-- ) {
+			long id = b.getLong();
+			String userId = WarmState.getString( b);
+			String filename = WarmState.getString( b);
+			long bytes = b.getLong();
+			if ( !done.contains( Long.valueOf( id)) ) l.add( new Job( id, userId, filename, bytes, 0));
+		}
+		return new Runnable() {
+			public void run() {
+				for ( int i = 0; i < l.size(); i++ ) submit( l.get( i));
+			}
+		};
+	}
+
+	// weighted round robin between the lanes
+	private synchronized Job take() throws InterruptedException {
+		while ( fast.size + bulk.size == 0 || running >= slots ) wait();
+		running++;
+
+		if ( fast.size == 0 || (fast.credits == 0 && bulk.size > 0 && bulk.credits > 0) ) return from( bulk);
+		if ( bulk.size == 0 || fast.credits > 0 ) return from( fast);
+		fast.credits = fast.weight;	// both lanes spent their turn
+		bulk.credits = bulk.weight;
+		return from( fast);
+	}
+
+	private Job from(Lane lane) {
+		if ( lane.credits > 0 ) lane.credits--;
+		Job j = lane.poll();
+		lane.wait.record( System.nanoTime() - j.enqueued);
+		inFlight.add( j);
+		return j;
+	}
+
+	private void work() {
+		while ( true ) {
+			Job j;
+			try {
+				j = take();
+			}
+			catch ( InterruptedException e ) {
+				return;
+			}
+			long t0 = System.nanoTime();
+			try {
+				FlickrFtpd.shell_exec( command + " " + j.userId + " " + j.filename);
+			}
+			finally {
+				release();
+			}
+			// a snapshot taken before this holds the job, one taken after
+			// doesn't; either way jobDone() logs it under the right one
+			synchronized ( this ) { inFlight.remove( j); }
+			WarmState w = completions;
+			if ( w != null ) w.jobDone( j);
+			run.record( System.nanoTime() - t0);
+			SessionTrace.ingestDone( FlickrFtpd.log ? System.out : null, j.sessionId, j.filename, j.enqueued);
+		}
+	}
+
+	void dumpHistograms(PrintStream ps) {
+		fast.wait.dump( ps);
+		bulk.wait.dump( ps);
+		run.dump( ps);
+	}
+}
@@ -0,0 +1,59 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// lock-free log2 histogram of nanosecond durations. bucket i holds samples
+// in [2^i, 2^(i+1)) microseconds, bucket 0 also holds everything under 1us.
+final class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray( BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+
+	LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	void record(long nanos) {
+		if ( nanos < 0 ) return;
+		long micros = nanos / 1000;
+		int b = ( micros == 0 ) ? 0 : 63 - Long.numberOfLeadingZeros( micros);
+		if ( b >= BUCKETS ) b = BUCKETS - 1;
+		counts.incrementAndGet( b);
+		sum.addAndGet( micros);
+	}
+
+	long count() {
+		long n = 0;
+		for ( int i = 0; i < BUCKETS; i++ ) n += counts.get( i);
+		return n;
+	}
+
+	// upper bound (in microseconds) of the bucket holding the given quantile
+	long quantileMicros(double q) {
+		long total = count();
+		if ( total == 0 ) return 0;
+		long want = (long)Math.ceil( total * q), seen = 0;
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			seen += counts.get( i);
+			if ( seen >= want ) return 1L << (i + 1);
+		}
+		return 1L << BUCKETS;
+	}
+
+	void dump(PrintStream ps) {
+		long n = count();
+		if ( n == 0 ) return;
+		ps.println( name + " n=" + n
+			+ " avg_us=" + (sum.get() / n)
+			+ " p50_us<=" + quantileMicros( 0.50)
+			+ " p90_us<=" + quantileMicros( 0.90)
+			+ " p99_us<=" + quantileMicros( 0.99));
+	}
+}
@@ -0,0 +1,93 @@
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+
+// MODE Z (deflate) data connection reader. like InflaterInputStream, but
+// the Inflater comes from a shared pool instead of being built and torn down
+// per transfer, the inflated size is capped, and wire vs inflated byte counts
+// are kept so we can see what compression buys.
+final class ModeZInputStream extends InputStream {
+
+	private static final int POOL_MAX = 32;
+	private static final ConcurrentLinkedQueue<Inflater> pool = new ConcurrentLinkedQueue<Inflater>();
+
+	static final AtomicLong totalWire     = new AtomicLong();
+	static final AtomicLong totalInflated = new AtomicLong();
+
+	private final InputStream in;
+	private final long limit;
+	private final byte[] wireBuffer;
+	private Inflater inflater;
+	private long wire = 0, inflated = 0;
+	private boolean eof = false;
+
+	ModeZInputStream(InputStream in, long limit, int bufferSize) {
+		this.in = in;
+		this.limit = limit;
+		this.wireBuffer = new byte[ bufferSize];
+		Inflater inf = pool.poll();
+		this.inflater = ( inf != null ) ? inf : new Inflater();
+	}
+
+	long getWireBytes() {
+		return wire;
+	}
+
+	long getInflatedBytes() {
+		return inflated;
+	}
+
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return ( read( one, 0, 1) == -1 ) ? -1 : (one[0] & 0xff);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if ( inflater == null ) throw new IOException( "stream closed");
+		if ( eof || len == 0 ) return eof ? -1 : 0;
+		try {
+			while ( true ) {
+				int n = inflater.inflate( b, off, len);
+				if ( n > 0 ) {
+					inflated += n;
+					totalInflated.addAndGet( n);
+					if ( inflated > limit ) throw new IOException( "decompressed size exceeds " + limit + " bytes");
+					return n;
+				}
+				if ( inflater.finished() ) {
+					eof = true;
+					return -1;
+				}
+				if ( inflater.needsDictionary() ) throw new IOException( "deflate stream needs a preset dictionary");
+				if ( inflater.needsInput() ) {
+					int got = in.read( wireBuffer, 0, wireBuffer.length);
+					if ( got == -1 ) {		// sender closed without a final block: truncated
+						throw new EOFException( "Unexpected end of ZLIB input stream");
+					}
+					wire += got;
+					totalWire.addAndGet( got);
+					inflater.setInput( wireBuffer, 0, got);
+				}
+			}
+		}
+		catch ( DataFormatException e ) {
+			throw new IOException( "bad deflate data: " + e.getMessage());
+		}
+	}
+
+	public void close() throws IOException {
+		if ( inflater != null ) {
+			inflater.reset();
+			if ( pool.size() < POOL_MAX ) pool.offer( inflater);
+			else inflater.end();
+			inflater = null;
+		}
+		in.close();
+	}
+
+	static void dumpStats(java.io.PrintStream ps) {
+		long w = totalWire.get(), p = totalInflated.get();
+		if ( w > 0 ) ps.println( "modez wire=" + w + " inflated=" + p + " ratio=" + (p * 100 / w) + "%");
+	}
+}
@@ -0,0 +1,110 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+// times CommandParser against the readLine()/substring()/intern() path it
+// replaced, on a sync client's usual command mix, and prints the time and
+// heap allocated per command for each. allocation comes from the JVM's
+// per-thread counter (com.sun.management), so run it on HotSpot.
+//
+//	java ParserBenchmark [commands]
+public class ParserBenchmark {
+
+	private static final String[] MIX = {
+		"NOOP", "TYPE I", "PORT 10,0,0,1,195,80", "REST 1048576", "STOR 2009_06_13_beach.jpg",
+		"NOOP", "SIZE 2009_06_13_beach.jpg", "PASV", "MODE Z", "STOR IMG_0412.JPG",
+	};
+
+	private static long sink = 0;	// keeps the work from being optimized away
+
+	public static void main(String[] args) throws Exception {
+		int commands = ( args.length > 0 ) ? Integer.parseInt( args[0]) : 1000000;
+
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		for ( int i = 0; i < MIX.length; i++ ) bo.write( (MIX[i] + "\r\n").getBytes( FlickrFtpd.TELNET));
+		byte[] block = bo.toByteArray();
+		int rounds = Math.max( 1, commands / MIX.length);
+
+		for ( int warm = 0; warm < 5; warm++ ) {
+			parser( block, rounds / 10);
+			readLine( block, rounds / 10);
+		}
+		report( "parser  ", block, rounds, true);
+		report( "readLine", block, rounds, false);
+		if ( sink == 42 ) System.out.println();
+	}
+
+	private static void report(String name, byte[] block, int rounds, boolean parser) throws IOException {
+		long a0 = allocated(), t0 = System.nanoTime();
+		if ( parser ) parser( block, rounds); else readLine( block, rounds);
+		long ns = System.nanoTime() - t0, bytes = allocated() - a0;
+		long n = (long)rounds * MIX.length;
+		System.out.println( name + " commands=" + n + " ns/cmd=" + (ns / n) + " bytes/cmd=" + (bytes / n));
+	}
+
+	private static void parser(byte[] block, int rounds) throws IOException {
+		RepeatingInputStream is = new RepeatingInputStream( block, rounds);
+		CommandParser in = new CommandParser( is);
+		while ( in.next() ) {
+			long verb = in.verb();
+			if ( verb == CommandParser.PORT ) sink += in.portArg();
+			else if ( verb == CommandParser.REST ) sink += in.argLong();
+			else if ( verb == CommandParser.STOR || verb == CommandParser.SIZE ) sink += in.argString().length();	// as FlickrFtpd does
+			else if ( verb == CommandParser.TYPE || verb == CommandParser.MODE ) sink += in.argChar( 0);
+			else sink += verb;
+		}
+	}
+
+	// the loop FlickrFtpd used to run
+	private static void readLine(byte[] block, int rounds) throws IOException {
+		BufferedReader in = new BufferedReader( new InputStreamReader( new RepeatingInputStream( block, rounds), FlickrFtpd.TELNET));
+		String str;
+		while ( (str = in.readLine()) != null ) {
+			int i = str.indexOf( ' ');
+			if ( i == -1 ) i = str.length();
+			String command = str.substring( 0, i).toUpperCase().intern();
+			str = str.substring( i).trim();
+			if ( command == "PORT" ) {
+				String a1 = "", a2 = "";
+				int lng = str.length() - 1;
+				int lng2 = str.lastIndexOf( ",");
+				int lng1 = str.lastIndexOf( ",", lng2 - 1);
+				for ( i = lng1 + 1; i < lng2; i++ ) a1 = a1 + str.charAt( i);
+				for ( i = lng2 + 1; i <= lng; i++ ) a2 = a2 + str.charAt( i);
+				sink += (Integer.parseInt( a1) << 8) + Integer.parseInt( a2);
+			}
+			else if ( command == "REST" ) sink += Long.parseLong( str);
+			else if ( command == "STOR" || command == "SIZE" ) sink += str.length();
+			else if ( command == "TYPE" || command == "MODE" ) sink += Character.toUpperCase( str.charAt( 0));
+			else sink += command.length();
+		}
+	}
+
+	private static long allocated() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes( Thread.currentThread().getId());
+	}
+
+	// the same block of commands over and over, without allocating
+	private static final class RepeatingInputStream extends InputStream {
+		private final byte[] block;
+		private int left, pos = 0;
+		RepeatingInputStream(byte[] block, int rounds) {
+			this.block = block;
+			this.left = rounds;
+		}
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return ( read( b, 0, 1) == -1 ) ? -1 : b[0] & 0xff;
+		}
+		public int read(byte[] b, int off, int len) {
+			if ( left == 0 ) return -1;
+			int n = Math.min( len, block.length - pos);
+			System.arraycopy( block, pos, b, off, n);
+			pos += n;
+			if ( pos == block.length ) {
+				pos = 0;
+				left--;
+			}
+			return n;
+		}
+	}
+}
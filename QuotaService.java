@@ -0,0 +1,157 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// per-user upload quota, checked as bytes arrive. usage is read once, from
+// the users row PASS already fetched, and kept in memory; STOR charges each
+// chunk with an atomic add. usage deltas go back to MySQL in the background
+// through the bookkeeping writer; a delta whose write fails is credited back
+// and goes out again with the next flush.
+final class QuotaService extends Thread {
+
+	static final long UNLIMITED = Long.MAX_VALUE;
+
+	static final class Account {
+		final String userId;
+		final AtomicLong used;
+		final AtomicLong unflushed = new AtomicLong();
+		volatile long limit;
+
+		Account(String userId, long used, long limit) {
+			this.userId = userId;
+			this.used = new AtomicLong( used);
+			this.limit = limit;
+		}
+	}
+
+	// a delta that has been queued but not yet acknowledged
+	private static final class Pending {
+		final Account account;
+		final long delta;
+		final BookkeepingWriter.Ticket ticket;
+		Pending(Account account, long delta, BookkeepingWriter.Ticket ticket) {
+			this.account = account;
+			this.delta = delta;
+			this.ticket = ticket;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+	private final BookkeepingWriter writer;
+	private final BookkeepingWriter.Table table;
+	private final long flushMillis;
+	private final List<Pending> pending = new ArrayList<Pending>();	// guarded by this
+
+	QuotaService(ThreadGroup group, BookkeepingWriter writer, BookkeepingWriter.Table table, long flushMillis) {
+		super( group, "FlickrFtpd-quota");
+		this.writer = writer;
+		this.table = table;
+		this.flushMillis = flushMillis;
+		setDaemon( true);
+	}
+
+	// the account for a user who just logged in. rs is positioned on their
+	// users row; usage is only taken from it the first time we see them,
+	// after that our own counter is the authority.
+	Account login(String userId, ResultSet rs) {
+		long limit = UNLIMITED, used = 0;
+		if ( rs != null ) try {
+			long q = rs.getLong( "quota_bytes");
+			if ( !rs.wasNull() && q > 0 ) limit = q;
+			used = rs.getLong( "quota_used");
+		}
+		catch ( SQLException e ) {};	// no quota columns: unlimited
+
+		Account a = accounts.get( userId);
+		if ( a == null ) {
+			Account fresh = new Account( userId, used, limit);
+			a = accounts.putIfAbsent( userId, fresh);
+			if ( a == null ) a = fresh;
+		}
+		a.limit = limit;
+		return a;
+	}
+
+	// take n bytes from the account. false (and nothing taken) if that would
+	// put it over quota.
+	boolean charge(Account a, long n) {
+		long now = a.used.addAndGet( n);
+		if ( now > a.limit && n > 0 ) {
+			a.used.addAndGet( -n);
+			return false;
+		}
+		a.unflushed.addAndGet( n);
+		return true;
+	}
+
+	// usage and limits, for warm restarts. used is everything we've charged,
+	// flushed or not, since after login our counter is the authority. deltas
+	// the database hasn't taken yet (never sent, or sent and failed) go in
+	// too so they are sent after the restart; deltas still in flight are
+	// left out, as they may already be in the database.
+	void writeSnapshot(DataOutputStream out) throws IOException {
+		List<Account> l = new ArrayList<Account>( accounts.values());
+		out.writeInt( l.size());
+		for ( int i = 0; i < l.size(); i++ ) {
+			Account a = l.get( i);
+			WarmState.putString( out, a.userId);
+			out.writeLong( a.used.get());
+			out.writeLong( a.unflushed.get());
+			out.writeLong( a.limit);
+		}
+	}
+
+	// nothing is restored until the returned Runnable is run
+	Runnable readSnapshot(ByteBuffer b) throws IOException {
+		final List<Account> l = new ArrayList<Account>();
+		for ( int n = b.getInt(); n > 0; n-- ) {
+			String userId = WarmState.getString( b);
+			long used = b.getLong();
+			long unflushed = b.getLong();
+			long limit = b.getLong();
+			Account a = new Account( userId, used, limit);
+			a.unflushed.set( unflushed);
+			l.add( a);
+		}
+		return new Runnable() {
+			public void run() {
+				for ( int i = 0; i < l.size(); i++ ) accounts.putIfAbsent( l.get( i).userId, l.get( i));
+			}
+		};
+	}
+
+	public void run() {
+		while ( true ) {
+			try {
+				Thread.sleep( flushMillis);
+				flush( flushMillis);
+			}
+			catch ( InterruptedException e ) {
+				return;
+			}
+		}
+	}
+
+	// send every account's unflushed delta and wait up to waitMillis for the
+	// writes. failed deltas are credited back to their accounts; ones not
+	// acknowledged in time are checked again next flush. true if nothing is
+	// left in flight.
+	synchronized boolean flush(long waitMillis) throws InterruptedException {
+		for ( Account a : accounts.values() ) {
+			long delta = a.unflushed.getAndSet( 0);
+			if ( delta != 0 ) pending.add( new Pending( a, delta, writer.writeAcked( table, new Object[] { a.userId, Long.valueOf( delta) })));
+		}
+
+		long end = System.currentTimeMillis() + waitMillis;
+		for ( Iterator<Pending> it = pending.iterator(); it.hasNext(); ) {
+			Pending p = it.next();
+			if ( !p.ticket.waitDone( Math.max( 0, end - System.currentTimeMillis())) ) continue;
+			if ( p.ticket.error() != null ) p.account.unflushed.addAndGet( p.delta);
+			it.remove();
+		}
+		return pending.isEmpty();
+	}
+}
@@ -0,0 +1,106 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+// opt-in capture of control-channel transcripts for load testing. every
+// session appends lines of "<session> <ms since accept> <kind> <detail>" to
+// one shared file:
+//
+//	B <ms>		session accepted, at this wall-clock time (epoch ms)
+//	C <verb> [arg]	command from the client
+//	S <code>	our reply
+//	D <bytes>	data connection payload, after MODE Z inflation
+//	E		session ended
+//
+// user names and file names are replaced by salted hashes (the salt lives
+// only as long as the process, so names stay consistent within a capture
+// but can't be reversed), passwords and PORT addresses are dropped.
+// SessionReplay plays the file back.
+final class SessionRecorder {
+
+	private static PrintWriter sink;
+	private static byte[] salt;
+
+	private final long id;
+	private final long start;
+
+	SessionRecorder(long id, long startNanos) {
+		this.id = id;
+		this.start = startNanos;
+		write( "B " + (System.currentTimeMillis() - (System.nanoTime() - startNanos) / 1000000));
+	}
+
+	static synchronized void open(String path) throws IOException {
+		sink = new PrintWriter( new BufferedWriter( new OutputStreamWriter( new FileOutputStream( path, true), FlickrFtpd.TELNET), 1 << 16));
+		salt = new byte[16];
+		new SecureRandom().nextBytes( salt);
+	}
+
+	static boolean enabled() {
+		return sink != null;
+	}
+
+	void command(CommandParser in) {
+		long verb = in.verb();
+		String line = "C " + in.verbString();
+		if ( verb == CommandParser.USER ) {
+			line += " u" + hash( in.argString());
+		} else if ( verb == CommandParser.STOR || verb == CommandParser.RETR || verb == CommandParser.SIZE
+				|| verb == CommandParser.MDTM || verb == CommandParser.HASH || verb == CommandParser.XSHA256 ) {
+			line += " " + anonymizeFile( in.argString());
+		} else if ( verb == CommandParser.TYPE || verb == CommandParser.MODE || verb == CommandParser.STRU
+				|| verb == CommandParser.REST || verb == CommandParser.ALLO || verb == CommandParser.PROT
+				|| verb == CommandParser.PBSZ || verb == CommandParser.AUTH ) {
+			if ( in.argLength() > 0 ) line += " " + in.argString();
+		}
+		// everything else (PASS, PORT, EPRT, unknown verbs) keeps only the verb
+		write( line);
+	}
+
+	void reply(CharSequence status) {
+		if ( status.length() >= 3 ) write( "S " + status.subSequence( 0, 3));
+	}
+
+	void data(long bytes) {
+		write( "D " + bytes);
+	}
+
+	void end() {
+		write( "E");
+		synchronized ( sink ) {
+			sink.flush();
+		}
+	}
+
+	private void write(String line) {
+		long ms = (System.nanoTime() - start) / 1000000;
+		synchronized ( sink ) {
+			sink.println( id + " " + ms + " " + line);
+		}
+	}
+
+	// keep the extension, it changes how clients and ingest behave
+	private static String anonymizeFile(String name) {
+		if ( name.startsWith( "/") ) name = name.substring( 1);	// same spool file either way
+		int dot = name.lastIndexOf( '.');
+		String ext = ( dot > 0 && name.length() - dot <= 6 ) ? name.substring( dot) : "";
+		return "f" + hash( name) + ext;
+	}
+
+	private static String hash(String s) {
+		try {
+			MessageDigest md = MessageDigest.getInstance( "SHA-256");
+			md.update( salt);
+			byte[] d = md.digest( s.getBytes( FlickrFtpd.TELNET));
+			StringBuffer sb = new StringBuffer( 12);
+			for ( int i = 0; i < 6; i++ ) {
+				sb.append( Character.forDigit( (d[i] >> 4) & 0xf, 16));
+				sb.append( Character.forDigit( d[i] & 0xf, 16));
+			}
+			return sb.toString();
+		}
+		catch ( Exception e ) {
+			return "0";
+		}
+	}
+}
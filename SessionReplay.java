@@ -0,0 +1,251 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+
+// re-drives transcripts captured by SessionRecorder against a running
+// server, usually a local FlickrFtpd started with -stub so no database or
+// ingest is involved. each recorded session gets its own connection and
+// thread, started at its recorded offset from the first session; command
+// timing is kept too, all divided by the speed factor. STOR sends as many
+// bytes as the original upload did, deflated after MODE Z. reply latency
+// per verb is printed at the end.
+//
+//	java SessionReplay <host> <port> <transcript> [speed]
+public class SessionReplay extends Thread {
+
+	private static final class Event {
+		final long ms;
+		final char kind;
+		final String verb;
+		final String arg;
+		final long bytes;
+		Event(long ms, char kind, String verb, String arg, long bytes) {
+			this.ms = ms;
+			this.kind = kind;
+			this.verb = verb;
+			this.arg = arg;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final Map<String, LatencyHistogram> latency = new TreeMap<String, LatencyHistogram>();
+	private static int failures = 0;
+
+	private final String host;
+	private final int port;
+	private final List<Event> events;
+	private final double speed;
+	private final long startAt;		// wall clock, ms
+	private final byte[] payload = new byte[ 16384];
+
+	private BufferedReader in;
+	private PrintWriter out;
+	private int pasvPort = -1;
+	private ServerSocket portListener;
+	private boolean modeZ = false;
+
+	SessionReplay(String host, int port, List<Event> events, double speed, long startAt) {
+		this.host = host;
+		this.port = port;
+		this.events = events;
+		this.speed = speed;
+		this.startAt = startAt;
+		new Random( 1).nextBytes( payload);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length < 3 ) {
+			System.out.println( "usage: SessionReplay <host> <port> <transcript> [speed]");
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt( args[1]);
+		double speed = ( args.length > 3 ) ? Double.parseDouble( args[3]) : 1.0;
+
+		Map<String, List<Event>> sessions = read( args[2]);
+		System.out.println( "replaying " + sessions.size() + " sessions at " + speed + "x");
+
+		// sessions start at their original offsets from the first one;
+		// ones without a start time (older transcripts) start straight away
+		long first = Long.MAX_VALUE;
+		for ( List<Event> l : sessions.values() ) first = Math.min( first, began( l, Long.MAX_VALUE));
+		long t0 = System.currentTimeMillis();
+		List<SessionReplay> running = new ArrayList<SessionReplay>();
+		for ( List<Event> l : sessions.values() ) {
+			SessionReplay r = new SessionReplay( host, port, l, speed, t0 + (long)((began( l, first) - first) / speed));
+			running.add( r);
+			r.start();
+		}
+		for ( int i = 0; i < running.size(); i++ ) running.get( i).join();
+
+		System.out.println( "done in " + (System.currentTimeMillis() - t0) + "ms, " + failures + " sessions failed");
+		synchronized ( latency ) {
+			for ( LatencyHistogram h : latency.values() ) h.dump( System.out);
+		}
+	}
+
+	// a session's recorded wall-clock start, or dflt if it has none
+	private static long began(List<Event> l, long dflt) {
+		return ( !l.isEmpty() && l.get( 0).kind == 'B' ) ? l.get( 0).bytes : dflt;
+	}
+
+	private static Map<String, List<Event>> read(String path) throws IOException {
+		Map<String, List<Event>> sessions = new LinkedHashMap<String, List<Event>>();
+		BufferedReader r = new BufferedReader( new InputStreamReader( new FileInputStream( path), FlickrFtpd.TELNET));
+		try {
+			String line;
+			while ( (line = r.readLine()) != null ) {
+				String[] f = line.split( " ", 5);
+				if ( f.length < 3 ) continue;
+				List<Event> l = sessions.get( f[0]);
+				if ( l == null ) sessions.put( f[0], l = new ArrayList<Event>());
+				long ms = Long.parseLong( f[1]);
+				char kind = f[2].charAt( 0);
+				if ( kind == 'C' ) l.add( new Event( ms, kind, f[3], ( f.length > 4 ) ? f[4] : null, 0));
+				else if ( kind == 'D' || kind == 'B' ) l.add( new Event( ms, kind, null, null, Long.parseLong( f[3])));
+			}
+		}
+		finally {
+			r.close();
+		}
+		return sessions;
+	}
+
+	public void run() {
+		Socket control = null;
+		try {
+			long wait = startAt - System.currentTimeMillis();
+			if ( wait > 0 ) Thread.sleep( wait);
+
+			control = new Socket( host, port);
+			in = new BufferedReader( new InputStreamReader( control.getInputStream(), FlickrFtpd.TELNET));
+			out = new PrintWriter( new OutputStreamWriter( control.getOutputStream(), FlickrFtpd.TELNET), true);
+			reply();	// greeting
+
+			long start = System.currentTimeMillis();
+			for ( int i = 0; i < events.size(); i++ ) {
+				Event e = events.get( i);
+				if ( e.kind != 'C' ) continue;
+
+				long due = start + (long)(e.ms / speed);
+				long now = System.currentTimeMillis();
+				if ( due > now ) Thread.sleep( due - now);
+
+				// the data size recorded for this command, if any
+				long bytes = -1;
+				if ( i + 1 < events.size() && events.get( i + 1).kind == 'D' ) bytes = events.get( i + 1).bytes;
+
+				long t0 = System.nanoTime();
+				issue( e, bytes);
+				record( e.verb, System.nanoTime() - t0);
+			}
+		}
+		catch ( Exception e ) {
+			synchronized ( latency ) {
+				failures++;
+			}
+			System.out.println( "session failed: " + e);
+		}
+		finally {
+			try {if ( control != null ) control.close();}
+			catch ( Exception e1 ) {};
+			try {if ( portListener != null ) portListener.close();}
+			catch ( Exception e1 ) {};
+		}
+	}
+
+	private void issue(Event e, long bytes) throws IOException {
+		String verb = e.verb;
+		if ( verb.equals( "PASS") ) {
+			send( "PASS replay");
+			reply();
+		} else if ( verb.equals( "AUTH") || verb.equals( "PBSZ") || verb.equals( "PROT") ) {
+			// transcripts are replayed in the clear
+		} else if ( verb.equals( "PORT") || verb.equals( "EPRT") ) {
+			if ( portListener != null ) portListener.close();
+			portListener = new ServerSocket( 0);
+			pasvPort = -1;
+			int p = portListener.getLocalPort();
+			send( "PORT " + control().replace( '.', ',') + "," + (p >> 8) + "," + (p & 0xff));
+			reply();
+		} else if ( verb.equals( "PASV") ) {
+			send( "PASV");
+			String r = reply();
+			int open = r.indexOf( '('), close = r.indexOf( ')');
+			if ( r.startsWith( "227") && open > 0 && close > open ) {
+				String[] f = r.substring( open + 1, close).split( ",");
+				pasvPort = (Integer.parseInt( f[4].trim()) << 8) + Integer.parseInt( f[5].trim());
+			}
+		} else if ( verb.equals( "STOR") || verb.equals( "LIST") || verb.equals( "NLST") || verb.equals( "RETR") ) {
+			send( ( e.arg != null ) ? verb + " " + e.arg : verb);
+			String r = reply();
+			if ( !r.startsWith( "1") ) return;
+			Socket data = open();
+			try {
+				if ( verb.equals( "STOR") ) {
+					// recorded sizes are inflated ones, so MODE Z deflates the same count
+					OutputStream os = data.getOutputStream();
+					if ( modeZ ) os = new DeflaterOutputStream( os, true);
+					for ( long left = Math.max( bytes, 0); left > 0; ) {
+						int n = (int)Math.min( left, payload.length);
+						os.write( payload, 0, n);
+						left -= n;
+					}
+					if ( modeZ ) ((DeflaterOutputStream)os).finish();
+					os.flush();
+				} else {
+					InputStream is = data.getInputStream();
+					byte[] sink = new byte[ 4096];
+					while ( is.read( sink) != -1 ) ;
+				}
+			}
+			finally {
+				data.close();
+			}
+			reply();
+		} else {
+			send( ( e.arg != null ) ? verb + " " + e.arg : verb);
+			String r = reply();
+			if ( verb.equals( "MODE") && r.startsWith( "2") ) modeZ = "Z".equalsIgnoreCase( e.arg);
+		}
+	}
+
+	private String control() throws IOException {
+		return InetAddress.getByName( host).isLoopbackAddress() ? "127.0.0.1" : InetAddress.getLocalHost().getHostAddress();
+	}
+
+	private Socket open() throws IOException {
+		// the address in the 227 reply is the server's idea of itself; the
+		// host we were pointed at is the one we know we can reach
+		if ( pasvPort > 0 ) return new Socket( host, pasvPort);
+		if ( portListener == null ) throw new IOException( "no PORT or PASV before transfer");
+		portListener.setSoTimeout( 30000);
+		return portListener.accept();
+	}
+
+	private void send(String line) {
+		out.print( line + "\r\n");
+		out.flush();
+	}
+
+	// one reply, skipping over the middle of multi-line ones
+	private String reply() throws IOException {
+		String line = in.readLine();
+		if ( line == null ) throw new EOFException( "server closed the connection");
+		if ( line.length() > 3 && line.charAt( 3) == '-' ) {
+			String end = line.substring( 0, 3) + " ";
+			String l;
+			while ( (l = in.readLine()) != null && !l.startsWith( end) ) ;
+		}
+		return line;
+	}
+
+	private static void record(String verb, long nanos) {
+		synchronized ( latency ) {
+			LatencyHistogram h = latency.get( verb);
+			if ( h == null ) latency.put( verb, h = new LatencyHistogram( "replay_" + verb));
+			h.record( nanos);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// per-session phase timestamps. marking a phase is a System.nanoTime() call and
+// an array store, plus a histogram update when the phase closes a span; nothing
+// is allocated until the record is emitted at the end of the session. only the
+// session's own thread marks phases. ingest jobs finish on worker threads,
+// often after the session has gone, so each job is timed on its own (see
+// ingestDone) rather than in the session's stamps.
+final class SessionTrace {
+
+	static final int ACCEPT         = 0;
+	static final int GREETING       = 1;
+	static final int USER           = 2;
+	static final int PASS           = 3;	// credential query issued
+	static final int PASS_DONE      = 4;	// credential query answered
+	static final int DATA_CMD       = 5;	// PASV or PORT
+	static final int DATA_CONNECT   = 6;
+	static final int FIRST_BYTE     = 7;
+	static final int LAST_BYTE      = 8;
+	static final int INGEST_ENQUEUE = 9;	// last ingest job handed off
+	static final int PHASES         = 10;
+
+	private static final String[] NAMES = {
+		"accept", "greeting", "user_cmd", "pass_query", "pass_done", "data_cmd",
+		"data_connect", "first_byte", "last_byte", "ingest_enqueue"
+	};
+
+	// the phase that opens the span closed by each phase, or -1
+	private static final int[] SPAN_FROM = {
+		-1, ACCEPT, -1, -1, PASS, -1,
+		DATA_CMD, DATA_CONNECT, FIRST_BYTE, -1
+	};
+
+	private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[ PHASES];
+	static {
+		for ( int i = 0; i < PHASES; i++ )
+			if ( SPAN_FROM[i] >= 0 ) HISTOGRAMS[i] = new LatencyHistogram( NAMES[ SPAN_FROM[i]] + "->" + NAMES[i]);
+	}
+
+	private static final LatencyHistogram INGEST = new LatencyHistogram( "ingest_enqueue->ingest_done");
+
+	private static final AtomicLong sessionIds = new AtomicLong();
+
+	private final long id = sessionIds.incrementAndGet();
+	private final long[] stamps = new long[ PHASES];
+	private int transfers = 0;
+
+	SessionTrace(long acceptNanos) {
+		stamps[ ACCEPT] = acceptNanos;
+	}
+
+	long getId() {
+		return id;
+	}
+
+	void mark(int phase) {
+		long now = System.nanoTime();
+		stamps[ phase] = now;
+		int from = SPAN_FROM[ phase];
+		if ( from >= 0 && stamps[ from] != 0 ) HISTOGRAMS[ phase].record( now - stamps[ from]);
+		if ( phase == LAST_BYTE ) transfers++;
+	}
+
+	boolean marked(int phase) {
+		return stamps[ phase] != 0;
+	}
+
+	// clear the per-transfer phases so the next transfer is timed from scratch
+	void resetTransfer() {
+		for ( int i = DATA_CONNECT; i <= LAST_BYTE; i++ ) stamps[i] = 0;
+	}
+
+	// one line of key=value pairs, offsets in microseconds from accept
+	void emit(PrintStream ps, String user, String remote) {
+		StringBuffer sb = new StringBuffer( 200);
+		sb.append( "trace session=").append( id)
+		  .append( " user=").append( user)
+		  .append( " remote=").append( remote)
+		  .append( " transfers=").append( transfers);
+		long base = stamps[ ACCEPT];
+		for ( int i = GREETING; i < PHASES; i++ ) {
+			if ( stamps[i] == 0 ) continue;
+			sb.append( ' ').append( NAMES[i]).append( '=').append( (stamps[i] - base) / 1000);
+		}
+		sb.append( " total=").append( (System.nanoTime() - base) / 1000);
+		ps.println( sb);
+	}
+
+	// an ingest job handed off at enqueuedNanos has finished. safe from any
+	// thread: touches nothing but the shared histogram, and prints its own
+	// line keyed by session id if ps isn't null.
+	static void ingestDone(PrintStream ps, long sessionId, String filename, long enqueuedNanos) {
+		long nanos = System.nanoTime() - enqueuedNanos;
+		INGEST.record( nanos);
+		if ( ps == null ) return;
+		StringBuffer sb = new StringBuffer( 100);
+		sb.append( "trace ingest session=").append( sessionId)
+		  .append( " file=").append( filename)
+		  .append( " ingest_done=").append( nanos / 1000);
+		ps.println( sb);
+	}
+
+	static void dumpHistograms(PrintStream ps) {
+		for ( int i = 0; i < PHASES; i++ )
+			if ( HISTOGRAMS[i] != null ) HISTOGRAMS[i].dump( ps);
+		INGEST.dump( ps);
+	}
+}
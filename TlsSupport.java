@@ -0,0 +1,78 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+
+// server side of AUTH TLS / PROT P. one SSLContext serves every control and
+// data connection, so its server session cache (and the session tickets the
+// JDK issues for TLS 1.3) let a client's data connections resume the session
+// its control connection negotiated instead of paying for a full handshake
+// each time. keeps full vs resumed handshake counts and the CPU they cost.
+final class TlsSupport {
+
+	private final SSLSocketFactory factory;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final AtomicLong full = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong fullCpuNanos = new AtomicLong();
+	private final AtomicLong resumedCpuNanos = new AtomicLong();
+
+	TlsSupport(String keystore, String password, int cacheSize, int cacheSeconds) throws Exception {
+		// stateless resumption for TLS 1.3; on by default in newer JDKs
+		if ( System.getProperty( "jdk.tls.server.enableSessionTicketExtension") == null )
+			System.setProperty( "jdk.tls.server.enableSessionTicketExtension", "true");
+
+		char[] pw = password.toCharArray();
+		KeyStore ks = KeyStore.getInstance( keystore.endsWith( ".jks") ? "JKS" : "PKCS12");
+		InputStream in = new FileInputStream( keystore);
+		try {
+			ks.load( in, pw);
+		}
+		finally {
+			in.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init( ks, pw);
+
+		SSLContext ctx = SSLContext.getInstance( "TLS");
+		ctx.init( kmf.getKeyManagers(), null, null);
+		SSLSessionContext sessions = ctx.getServerSessionContext();
+		sessions.setSessionCacheSize( cacheSize);
+		sessions.setSessionTimeout( cacheSeconds);
+		this.factory = ctx.getSocketFactory();
+	}
+
+	// layer TLS over an accepted (or connected) socket, server role, and
+	// run the handshake now so its cost lands in our counters
+	SSLSocket wrap(Socket s) throws IOException {
+		SSLSocket ssl = (SSLSocket)factory.createSocket( s, s.getInetAddress().getHostAddress(), s.getPort(), true);
+		ssl.setUseClientMode( false);
+
+		long started = System.currentTimeMillis();
+		boolean cpu = threads.isCurrentThreadCpuTimeSupported();
+		long cpu0 = cpu ? threads.getCurrentThreadCpuTime() : 0;
+		ssl.startHandshake();
+		long spent = cpu ? threads.getCurrentThreadCpuTime() - cpu0 : 0;
+
+		// a resumed session was created before this handshake began
+		if ( ssl.getSession().getCreationTime() < started ) {
+			resumed.incrementAndGet();
+			resumedCpuNanos.addAndGet( spent);
+		} else {
+			full.incrementAndGet();
+			fullCpuNanos.addAndGet( spent);
+		}
+		return ssl;
+	}
+
+	void dumpStats(PrintStream ps) {
+		long f = full.get(), r = resumed.get();
+		if ( f + r == 0 ) return;
+		ps.println( "tls full=" + f + " resumed=" + r
+			+ " full_cpu_us=" + (( f > 0 ) ? fullCpuNanos.get() / f / 1000 : 0)
+			+ " resumed_cpu_us=" + (( r > 0 ) ? resumedCpuNanos.get() / r / 1000 : 0));
+	}
+}
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// what we know about files already in the spool, per user: size, mtime and
+// the SHA-256 computed while the file was being written. the digest is also
+// written to a sidecar so it survives restarts; lookups never re-read the
+// file itself. sidecars live in a hidden directory under the spool rather
+// than next to the files, since every name beside them belongs to a user
+// (an upload called "x.sha256" mustn't overwrite, or be, the digest of "x").
+final class UploadIndex {
+
+	static final String SIDECAR_DIR = ".sha256";
+
+	static final class Entry {
+		final long size;
+		final long mtime;
+		final String sha256;	// lower-case hex, or null if unknown
+		Entry(long size, long mtime, String sha256) {
+			this.size = size;
+			this.mtime = mtime;
+			this.sha256 = sha256;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> users =
+		new ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>();
+
+	private UploadIndex() {}
+
+	private static ConcurrentHashMap<String, Entry> files(String userId) {
+		ConcurrentHashMap<String, Entry> m = users.get( userId);
+		if ( m == null ) {
+			ConcurrentHashMap<String, Entry> fresh = new ConcurrentHashMap<String, Entry>();
+			m = users.putIfAbsent( userId, fresh);
+			if ( m == null ) m = fresh;
+		}
+		return m;
+	}
+
+	// record a finished upload and persist its digest beside it
+	static void put(String userId, String filename, File file, String sha256) throws IOException {
+		Entry e = new Entry( file.length(), file.lastModified(), sha256);
+		files( userId).put( filename, e);
+
+		File sidecar = sidecarFor( file);
+		sidecar.getParentFile().mkdirs();
+		Writer w = new OutputStreamWriter( new FileOutputStream( sidecar), FlickrFtpd.TELNET);
+		try {
+			w.write( sha256 + " " + e.size + " " + e.mtime + "\n");
+		}
+		finally {
+			w.close();
+		}
+	}
+
+	// the entry for a file, or null if there is no such file. falls back to
+	// the sidecar (and failing that, plain file metadata) for files written
+	// before this process started.
+	static Entry get(String userId, String filename, File file) {
+		ConcurrentHashMap<String, Entry> m = files( userId);
+		Entry e = m.get( filename);
+		if ( e != null && e.size == file.length() && e.mtime == file.lastModified() ) return e;
+		if ( !file.isFile() ) {
+			m.remove( filename);
+			return null;
+		}
+
+		e = readSidecar( file);
+		if ( e == null ) return new Entry( file.length(), file.lastModified(), null);	// not cached: no digest to vouch for
+		m.put( filename, e);
+		return e;
+	}
+
+	static void remove(String userId, String filename) {
+		files( userId).remove( filename);
+	}
+
+	static void writeSnapshot(DataOutputStream out) throws IOException {
+		List<String> ids = new ArrayList<String>( users.keySet());
+		out.writeInt( ids.size());
+		for ( int i = 0; i < ids.size(); i++ ) {
+			List<Map.Entry<String, Entry>> l = new ArrayList<Map.Entry<String, Entry>>( files( ids.get( i)).entrySet());
+			WarmState.putString( out, ids.get( i));
+			out.writeInt( l.size());
+			for ( int j = 0; j < l.size(); j++ ) {
+				Entry e = l.get( j).getValue();
+				WarmState.putString( out, l.get( j).getKey());
+				out.writeLong( e.size);
+				out.writeLong( e.mtime);
+				WarmState.putString( out, e.sha256);
+			}
+		}
+	}
+
+	// entries are checked against the file's size and mtime on lookup, so
+	// stale ones from the snapshot fall out by themselves. nothing is
+	// restored until the returned Runnable is run.
+	static Runnable readSnapshot(ByteBuffer b) throws IOException {
+		final Map<String, Map<String, Entry>> read = new HashMap<String, Map<String, Entry>>();
+		for ( int n = b.getInt(); n > 0; n-- ) {
+			Map<String, Entry> m = new HashMap<String, Entry>();
+			read.put( WarmState.getString( b), m);
+			for ( int k = b.getInt(); k > 0; k-- ) {
+				String filename = WarmState.getString( b);
+				long size = b.getLong();
+				long mtime = b.getLong();
+				m.put( filename, new Entry( size, mtime, WarmState.getString( b)));
+			}
+		}
+		return new Runnable() {
+			public void run() {
+				for ( Map.Entry<String, Map<String, Entry>> u : read.entrySet() ) {
+					ConcurrentHashMap<String, Entry> m = files( u.getKey());
+					for ( Map.Entry<String, Entry> f : u.getValue().entrySet() ) m.putIfAbsent( f.getKey(), f.getValue());
+				}
+			}
+		};
+	}
+
+	private static File sidecarFor(File file) {
+		return new File( new File( file.getAbsoluteFile().getParentFile(), SIDECAR_DIR), file.getName());
+	}
+
+	private static Entry readSidecar(File file) {
+		BufferedReader r = null;
+		try {
+			r = new BufferedReader( new InputStreamReader( new FileInputStream( sidecarFor( file)), FlickrFtpd.TELNET));
+			String[] f = r.readLine().split( " ");
+			long size = Long.parseLong( f[1]);
+			long mtime = Long.parseLong( f[2]);
+			// a sidecar for an older copy of the file is no good
+			if ( size != file.length() || mtime != file.lastModified() ) return null;
+			return new Entry( size, mtime, f[0]);
+		}
+		catch ( Exception e ) {
+			return null;
+		}
+		finally {
+			try {if ( r != null ) r.close();}
+			catch ( Exception e1 ) {};
+		}
+	}
+}
@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// periodic binary snapshot of the server's in-memory tables (quota
+// accounts, the per-user upload index, queued ingest jobs) so a restarted
+// server starts warm. the file is written to a temp name, synced and renamed
+// into place; on startup it is memory-mapped and read straight out of the
+// map. either all of it is restored or, if any of it can't be read, none.
+//
+// layout: magic, version, generation, then sections of (tag, byte length,
+// body) so a reader can skip sections it doesn't know, then an END tag.
+//
+// ingest jobs that finish between snapshots are appended to a completion
+// log (path + ".done") as (generation, job id), so a restart doesn't run
+// them again. the log is emptied once the next snapshot is in place;
+// records from an older generation are ignored. the log isn't synced, so a
+// machine crash can still cost a job a second run, but not a lost one.
+final class WarmState extends Thread {
+
+	private static final int MAGIC   = 0x46465753;	// "FFWS"
+	private static final int VERSION = 3;
+
+	static final int END    = 0;
+	static final int QUOTA  = 1;
+	static final int INDEX  = 2;
+	static final int INGEST = 3;
+
+	private final String path;
+	private final long intervalMillis;
+	private final QuotaService quota;
+	private final IngestScheduler ingest;
+
+	// guarded by this
+	private long generation = 0;		// of the snapshot in place
+	private DataOutputStream doneLog = null;
+
+	WarmState(ThreadGroup group, String path, long intervalMillis, QuotaService quota, IngestScheduler ingest) {
+		super( group, "FlickrFtpd-snapshot");
+		this.path = path;
+		this.intervalMillis = intervalMillis;
+		this.quota = quota;
+		this.ingest = ingest;
+		setDaemon( true);
+		ingest.setCompletionLog( this);
+	}
+
+	public void run() {
+		while ( true ) {
+			try {
+				Thread.sleep( intervalMillis);
+				save();
+			}
+			catch ( InterruptedException e ) {
+				return;
+			}
+			catch ( IOException e ) {
+				System.out.println( "snapshot failed: " + e.getMessage());
+			}
+		}
+	}
+
+	synchronized void save() throws IOException {
+		long t0 = System.nanoTime();
+		File tmp = new File( path + ".tmp");
+		FileOutputStream fos = new FileOutputStream( tmp);
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fos, 1 << 16));
+		long next = generation + 1;
+		try {
+			out.writeInt( MAGIC);
+			out.writeInt( VERSION);
+			out.writeLong( next);
+
+			ByteArrayOutputStream section = new ByteArrayOutputStream( 1 << 16);
+			DataOutputStream so = new DataOutputStream( section);
+
+			quota.writeSnapshot( so);
+			writeSection( out, QUOTA, section);
+
+			UploadIndex.writeSnapshot( so);
+			writeSection( out, INDEX, section);
+
+			ingest.writeSnapshot( so);
+			writeSection( out, INGEST, section);
+
+			out.writeInt( END);
+			out.flush();
+			fos.getFD().sync();	// or a crash after the rename can leave an empty file in place
+		}
+		finally {
+			out.close();
+		}
+		Files.move( tmp.toPath(), Paths.get( path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		generation = next;
+
+		// completions so far were of jobs this snapshot no longer holds
+		if ( doneLog != null ) try { doneLog.close(); } catch ( IOException e ) {};
+		doneLog = null;
+		new File( path + ".done").delete();
+		if ( FlickrFtpd.log) System.out.println( "snapshot written in " + (System.nanoTime() - t0) / 1000000 + "ms");
+	}
+
+	private static void writeSection(DataOutputStream out, int tag, ByteArrayOutputStream section) throws IOException {
+		out.writeInt( tag);
+		out.writeInt( section.size());
+		section.writeTo( out);
+		section.reset();
+	}
+
+	// record a finished ingest job, so a restart from the snapshot in place
+	// doesn't run it again
+	synchronized void jobDone(IngestScheduler.Job j) {
+		try {
+			if ( doneLog == null ) doneLog = new DataOutputStream( new FileOutputStream( path + ".done", true));
+			ByteArrayOutputStream rec = new ByteArrayOutputStream( 64);
+			DataOutputStream r = new DataOutputStream( rec);
+			r.writeLong( generation);
+			r.writeLong( j.id);
+			rec.writeTo( doneLog);	// one write, so a torn record is only ever the last
+			doneLog.flush();
+		}
+		catch ( IOException e ) {
+			System.out.println( "completion log: " + e.getMessage());
+		}
+	}
+
+	// load whatever the last snapshot holds. a missing, unreadable or
+	// incomplete snapshot just means a cold start: nothing from it is
+	// restored unless all of it could be read.
+	synchronized void load() {
+		File f = new File( path);
+		if ( !f.isFile() ) return;
+		long t0 = System.nanoTime();
+		List<Runnable> restore = new ArrayList<Runnable>();
+		try {
+			FileChannel ch = new RandomAccessFile( f, "r").getChannel();
+			try {
+				ByteBuffer b = ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				if ( b.getInt() != MAGIC || b.getInt() != VERSION ) {
+					System.out.println( "snapshot " + path + " has the wrong format, ignoring it");
+					return;
+				}
+				long gen = b.getLong();
+				Set<Long> done = readDoneLog( gen);
+				while ( true ) {
+					int tag = b.getInt();
+					if ( tag == END ) break;
+					int len = b.getInt();
+					ByteBuffer body = b.slice();
+					body.limit( len);
+					b.position( b.position() + len);
+
+					if ( tag == QUOTA ) restore.add( quota.readSnapshot( body));
+					else if ( tag == INDEX ) restore.add( UploadIndex.readSnapshot( body));
+					else if ( tag == INGEST ) restore.add( ingest.readSnapshot( body, done));
+				}
+				generation = gen;
+			}
+			finally {
+				ch.close();
+			}
+		}
+		catch ( Exception e ) {
+			System.out.println( "snapshot " + path + " unreadable, starting cold: " + e);
+			return;
+		}
+		for ( int i = 0; i < restore.size(); i++ ) restore.get( i).run();
+		if ( FlickrFtpd.log) System.out.println( "snapshot loaded in " + (System.nanoTime() - t0) / 1000000 + "ms");
+	}
+
+	// ids of the jobs that have finished since snapshot gen was taken.
+	// stops at a torn last record.
+	private Set<Long> readDoneLog(long gen) {
+		Set<Long> done = new HashSet<Long>();
+		File f = new File( path + ".done");
+		if ( !f.isFile() ) return done;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( f)));
+			while ( true ) {
+				long g = in.readLong();
+				long id = in.readLong();
+				if ( g == gen ) done.add( Long.valueOf( id));
+			}
+		}
+		catch ( IOException e ) {}	// EOF, or a record cut short by a crash
+		finally {
+			if ( in != null ) try { in.close(); } catch ( IOException e ) {};
+		}
+		return done;
+	}
+
+	// strings are a length and UTF-8 bytes; -1 for null
+	static void putString(DataOutputStream out, String s) throws IOException {
+		if ( s == null ) {
+			out.writeInt( -1);
+			return;
+		}
+		byte[] b = s.getBytes( "UTF-8");
+		out.writeInt( b.length);
+		out.write( b);
+	}
+
+	static String getString(ByteBuffer b) throws IOException {
+		int len = b.getInt();
+		if ( len < 0 ) return null;
+		byte[] s = new byte[ len];
+		b.get( s);
+		return new String( s, "UTF-8");
+	}
+}
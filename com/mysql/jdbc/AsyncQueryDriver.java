@@ -0,0 +1,293 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Runs a connection's asynchronous queries on a thread of its own, so
+ * callers get a CompletableFuture back straight away and never wait on the
+ * connection's mutex. Queries run in the order they were submitted;
+ * whatever has queued up while the previous queries ran is sent as one
+ * pipeline (see Connection.executePipelined()). Results are read in full
+ * into RowDataStatic, whether or not the connection uses compact row
+ * storage.
+ *
+ * <p>
+ * Futures are completed on the driver's thread, after the connection's
+ * mutex has been released, so dependent stages may issue more work on
+ * the same connection. Stages attached without an executor run on that
+ * thread too, and nothing else on the connection runs until they return,
+ * so they must not block on another of the connection's futures.
+ * </p>
+ */
+class AsyncQueryDriver implements Runnable {
+    /** Most queries sent in one pipeline */
+    private static final int MAX_PIPELINE = 256;
+
+    /** Queued by shutdown() to wake the thread */
+    private static final Request SHUTDOWN = new Request(null);
+
+    /** The connection we run queries on */
+    private Connection connection;
+
+    /** Queries waiting to run */
+    private LinkedBlockingQueue<Request> queue =
+        new LinkedBlockingQueue<Request>();
+
+    /** The thread running queries */
+    private Thread thread;
+
+    /** Set once shutdown() has been called */
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates and starts a driver for the given connection.
+     *
+     * @param connection the connection to run queries on
+     */
+    AsyncQueryDriver(Connection connection) {
+        this.connection = connection;
+        this.thread = new Thread(this, "MySQL async I/O");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a query.
+     *
+     * @param sql the query to run
+     *
+     * @return a future for its result set
+     */
+    CompletableFuture<java.sql.ResultSet> submitQuery(String sql) {
+        Request request = new Request(sql);
+
+        request.results = new CompletableFuture<java.sql.ResultSet>();
+        enqueue(request);
+
+        return request.results;
+    }
+
+    /**
+     * Queues a statement whose update count is wanted.
+     *
+     * @param sql the statement to run
+     *
+     * @return a future for its update count
+     */
+    CompletableFuture<Integer> submitUpdate(String sql) {
+        Request request = new Request(sql);
+
+        request.updateCount = new CompletableFuture<Integer>();
+        enqueue(request);
+
+        return request.updateCount;
+    }
+
+    /**
+     * Stops the driver, failing any queries that haven't been sent. Doesn't
+     * interrupt the thread, as that would close a channel-based socket
+     * under a query that's in flight.
+     */
+    void shutdown() {
+        this.shutdown = true;
+
+        Request request;
+
+        while ((request = this.queue.poll()) != null) {
+            if (request != SHUTDOWN) {
+                request.fail(closedException());
+            }
+        }
+
+        this.queue.add(SHUTDOWN);
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        List<Request> batch = new ArrayList<Request>();
+
+        while (!this.shutdown) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException ie) {
+                continue;
+            }
+
+            if (batch.get(0) == SHUTDOWN) {
+                batch.clear();
+
+                continue;
+            }
+
+            this.queue.drainTo(batch, MAX_PIPELINE - 1);
+            batch.remove(SHUTDOWN);
+
+            int start = 0;
+
+            while (start < batch.size()) {
+                if (this.shutdown) {
+                    // Closed by one of this batch's statements failing
+                    for (int i = start; i < batch.size(); i++) {
+                        complete(batch.get(i), null, closedException());
+                    }
+
+                    break;
+                }
+
+                start = runSome(batch, start);
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Runs the requests from start on, up to the next LOAD DATA statement
+     * (which has to run on its own), as one pipeline.
+     *
+     * @param batch the requests
+     * @param start the first request to run
+     *
+     * @return the index of the first request not run
+     */
+    private int runSome(List<Request> batch, int start) {
+        Request first = batch.get(start);
+
+        if (first.isLoadData()) {
+            try {
+                complete(first,
+                    this.connection.execSQL(first.sql, -1,
+                        java.sql.ResultSet.CONCUR_READ_ONLY, false, false,
+                        this.connection.getCatalog()), null);
+            } catch (Exception ex) {
+                complete(first, null, ex);
+            }
+
+            return start + 1;
+        }
+
+        int end = start + 1;
+
+        while ((end < batch.size()) && !batch.get(end).isLoadData()) {
+            end++;
+        }
+
+        String[] sql = new String[end - start];
+
+        for (int i = 0; i < sql.length; i++) {
+            sql[i] = batch.get(start + i).sql;
+        }
+
+        SQLException[] errors = new SQLException[sql.length];
+
+        try {
+            ResultSet[] results = this.connection.execSQLPipelined(sql, false,
+                    errors);
+
+            for (int i = 0; i < sql.length; i++) {
+                complete(batch.get(start + i), results[i], errors[i]);
+            }
+        } catch (Exception ex) {
+            for (int i = start; i < end; i++) {
+                complete(batch.get(i), null, ex);
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Completes a request's future.
+     *
+     * @param request the request
+     * @param results its results, if it succeeded
+     * @param ex why it failed, if it did
+     */
+    private void complete(Request request, ResultSet results, Exception ex) {
+        if (ex != null) {
+            request.fail(ex);
+        } else if (request.updateCount != null) {
+            request.updateCount.complete(Integer.valueOf(
+                    (int) results.getUpdateCount()));
+        } else {
+            request.results.complete(results);
+        }
+    }
+
+    /**
+     * Queues a request, or fails it if the driver has been shut down.
+     *
+     * @param request the request
+     */
+    private void enqueue(Request request) {
+        if (this.shutdown) {
+            request.fail(closedException());
+
+            return;
+        }
+
+        this.queue.add(request);
+
+        // Lost a race with shutdown(), make sure nothing is left waiting
+        if (this.shutdown && this.queue.remove(request)) {
+            request.fail(closedException());
+        }
+    }
+
+    private static SQLException closedException() {
+        return new SQLException("Connection closed before query could be sent",
+            SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE);
+    }
+
+    /**
+     * A query waiting to run. Exactly one of results and updateCount is
+     * set, depending on what the caller asked for.
+     */
+    static class Request {
+        CompletableFuture<java.sql.ResultSet> results;
+        CompletableFuture<Integer> updateCount;
+        String sql;
+
+        Request(String sql) {
+            this.sql = sql;
+        }
+
+        void fail(Exception ex) {
+            if (this.updateCount != null) {
+                this.updateCount.completeExceptionally(ex);
+            } else {
+                this.results.completeExceptionally(ex);
+            }
+        }
+
+        boolean isLoadData() {
+            return StringUtils.startsWithIgnoreCaseAndWs(this.sql, "LOAD DATA");
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import java.nio.channels.SocketChannel;
+
+import java.util.Properties;
+
+
+/**
+ * Socket factory for TCP/IP connections made through a SocketChannel. The
+ * driver uses the channel directly to read packets into a direct buffer
+ * and to send split packets with gathering writes; the channel's socket
+ * is used for everything else (socket options, SSL, the output stream).
+ *
+ * <p>
+ * Use with <code>socketFactory=com.mysql.jdbc.ChannelSocketFactory</code>.
+ * Honors the same PORT and connectTimeout properties as
+ * StandardSocketFactory.
+ * </p>
+ */
+public class ChannelSocketFactory implements SocketFactory {
+    /** The channel the connection is made through */
+    protected SocketChannel channel = null;
+
+    /** The socket to hand back to the driver */
+    protected Socket rawSocket = null;
+
+    /** The hostname to connect to */
+    protected String host = null;
+
+    /** The port number to connect to */
+    protected int port = 3306;
+
+    /**
+     * Returns the channel the connection was made through, so the driver
+     * can read and write it directly.
+     *
+     * @return the connected channel, or null before connect()
+     */
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Called by the driver after issuing the MySQL protocol handshake and
+     * reading the results of the handshake.
+     *
+     * @throws SocketException if a socket error occurs
+     * @throws IOException if an I/O error occurs
+     *
+     * @return The socket to use after the handshake
+     */
+    public Socket afterHandshake() throws SocketException, IOException {
+        return this.rawSocket;
+    }
+
+    /**
+     * Called by the driver before issuing the MySQL protocol handshake.
+     * Should return the socket instance that should be used during
+     * the handshake.
+     *
+     * @throws SocketException if a socket error occurs
+     * @throws IOException if an I/O error occurs
+     *
+     * @return the socket to use before the handshake
+     */
+    public Socket beforeHandshake() throws SocketException, IOException {
+        return this.rawSocket;
+    }
+
+    /**
+     * @see com.mysql.jdbc.SocketFactory#createSocket(Properties)
+     */
+    public Socket connect(String host, Properties props)
+        throws SocketException, IOException {
+        if ((props != null) && (host != null)) {
+            this.host = host;
+
+            String portStr = props.getProperty("PORT");
+
+            if (portStr != null) {
+                this.port = Integer.parseInt(portStr);
+            }
+
+            int connectTimeout = 0;
+
+            String connectTimeoutStr = props.getProperty("connectTimeout");
+
+            if (connectTimeoutStr != null) {
+                try {
+                    connectTimeout = Integer.parseInt(connectTimeoutStr);
+                } catch (NumberFormatException nfe) {
+                    throw new SocketException("Illegal value '"
+                        + connectTimeoutStr + "' for connectTimeout");
+                }
+            }
+
+            this.channel = SocketChannel.open();
+
+            try {
+                // Connect through the socket adaptor, the channel's own
+                // connect() has no timeout
+                this.rawSocket = this.channel.socket();
+                this.rawSocket.connect(new InetSocketAddress(this.host,
+                        this.port), connectTimeout);
+            } catch (IOException ioEx) {
+                this.channel.close();
+                this.channel = null;
+                this.rawSocket = null;
+
+                throw ioEx;
+            }
+
+            try {
+                this.rawSocket.setTcpNoDelay(true);
+            } catch (Exception ex) {
+                /* Ignore */
+            }
+
+            return this.rawSocket;
+        }
+
+        throw new SocketException("Unable to create socket");
+    }
+}
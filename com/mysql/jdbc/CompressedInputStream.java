@@ -35,10 +35,19 @@ import java.util.zip.Inflater;
  * Window>Preferences>Java>Code Generation.
  */
 class CompressedInputStream extends InputStream {
+    //~ Static fields/initializers -------------------------------------------
+
+    /** Packet buffers larger than this are not kept once used */
+    private static final int MAX_RETAINED_BUFFER = 1048576;
+
+    /** Smallest packet buffer we allocate */
+    private static final int MIN_BUFFER = 16384;
+
     //~ Instance fields --------------------------------------------------------
 
     /**
-     * The ZIP inflater used to un-compress packets
+     * The ZIP inflater used to un-compress packets, re-used for every
+     * packet until the stream is closed
      */
     private Inflater inflater;
 
@@ -48,7 +57,20 @@ class CompressedInputStream extends InputStream {
     private InputStream in;
 
     /**
-     * The packet data after it has been un-compressed
+     * The compressed protocol header of the packet being read
+     */
+    private byte[] header = new byte[MysqlIO.HEADER_LENGTH
+        + MysqlIO.COMP_HEADER_LENGTH];
+
+    /**
+     * Compressed packet data, re-used from packet to packet
+     */
+    private byte[] compressedPacket;
+
+    /**
+     * The packet data after it has been un-compressed, re-used from packet
+     * to packet as the previous one is always drained before the next is
+     * read
      */
     private byte[] uncompressedPacket;
 
@@ -57,6 +79,11 @@ class CompressedInputStream extends InputStream {
      */
     private int pos = 0;
 
+    /**
+     * The end of valid data in uncompressedPacket
+     */
+    private int limit = 0;
+
     //~ Constructors -----------------------------------------------------------
 
     /**
@@ -76,11 +103,7 @@ class CompressedInputStream extends InputStream {
      * @see java.io.InputStream#available()
      */
     public int available() throws IOException {
-        if (this.uncompressedPacket == null) {
-            return this.in.available();
-        }
-
-        return this.uncompressedPacket.length - this.pos + this.in.available();
+        return (this.limit - this.pos) + this.in.available();
     }
 
     /**
@@ -88,8 +111,15 @@ class CompressedInputStream extends InputStream {
      */
     public void close() throws IOException {
         this.in.close();
+        this.compressedPacket = null;
         this.uncompressedPacket = null;
-        this.inflater = null;
+        this.pos = 0;
+        this.limit = 0;
+
+        if (this.inflater != null) {
+            this.inflater.end();
+            this.inflater = null;
+        }
     }
 
     /**
@@ -97,7 +127,7 @@ class CompressedInputStream extends InputStream {
      */
     public int read() throws IOException {
         try {
-            getNextPacketIfRequired(1);
+            getNextPacketIfRequired();
         } catch (IOException ioEx) {
             return -1;
         }
@@ -121,11 +151,17 @@ class CompressedInputStream extends InputStream {
         }
 
         try {
-            getNextPacketIfRequired(len);
+            getNextPacketIfRequired();
         } catch (IOException ioEx) {
             return -1;
         }
 
+        //
+        // Hand back what this packet holds rather than blocking for
+        // another one, callers read ahead and only need some bytes
+        //
+        len = Math.min(len, this.limit - this.pos);
+
         System.arraycopy(this.uncompressedPacket, this.pos, b, off, len);
         this.pos += len;
 
@@ -143,110 +179,117 @@ class CompressedInputStream extends InputStream {
      * @see java.io.InputStream#skip(long)
      */
     public long skip(long n) throws IOException {
-        long count = 0;
+        if (n <= 0) {
+            return 0;
+        }
 
-        for (long i = 0; i < n; i++) {
-            int bytesRead = read();
+        try {
+            getNextPacketIfRequired();
+        } catch (IOException ioEx) {
+            return 0;
+        }
 
-            if (bytesRead == -1) {
-                break;
-            }
+        int count = (int) Math.min(n, this.limit - this.pos);
 
-            count++;
-        }
+        this.pos += count;
 
         return count;
     }
 
     /**
-         * Retrieves and un-compressed (if necessary) the next
-         * packet from the server.
-         *
-         * @throws IOException if an I/O error occurs
-         */
+     * Retrieves and un-compresses (if necessary) the next packet from the
+     * server into uncompressedPacket.
+     *
+     * @throws IOException if an I/O error occurs
+     */
     private void getNextPacketFromServer() throws IOException {
-        byte[] uncompressedBuffer = null;
-
-        int packetLength = this.in.read() + (this.in.read() << 8)
-            + (this.in.read() << 16);
+        readFully(this.header, 0, this.header.length);
 
-        // -1 for all values through above assembly sequence
-        if (packetLength == -65793) {
-            throw new IOException("Unexpected end of input stream");
-        }
+        byte[] h = this.header;
+        int packetLength = (h[0] & 0xff) | ((h[1] & 0xff) << 8)
+            | ((h[2] & 0xff) << 16);
 
         // we don't look at packet sequence in this case
-        this.in.read();
+        int uncompressedLength = (h[4] & 0xff) | ((h[5] & 0xff) << 8)
+            | ((h[6] & 0xff) << 16);
 
-        int compressedLength = this.in.read() + (this.in.read() << 8)
-            + (this.in.read() << 16);
+        if (uncompressedLength > 0) {
+            this.compressedPacket = ensureCapacity(this.compressedPacket,
+                    packetLength);
+            this.uncompressedPacket = ensureCapacity(this.uncompressedPacket,
+                    uncompressedLength);
 
-        if (compressedLength > 0) {
-            uncompressedBuffer = new byte[compressedLength];
+            readFully(this.compressedPacket, 0, packetLength);
 
-            byte[] compressedBuffer = new byte[packetLength];
+            this.inflater.reset();
+            this.inflater.setInput(this.compressedPacket, 0, packetLength);
 
-            readFully(compressedBuffer, 0, packetLength);
+            int inflated = 0;
 
             try {
-                this.inflater.reset();
-            } catch (NullPointerException npe) {
-                this.inflater = new Inflater();
-            }
-
-            this.inflater.setInput(compressedBuffer);
-
-            try {
-                this.inflater.inflate(uncompressedBuffer);
+                while (inflated < uncompressedLength) {
+                    int count = this.inflater.inflate(this.uncompressedPacket,
+                            inflated, uncompressedLength - inflated);
+
+                    if ((count == 0)
+                            && (this.inflater.finished()
+                            || this.inflater.needsInput())) {
+                        throw new IOException(
+                            "Compressed packet from server is shorter than its header claims.");
+                    }
+
+                    inflated += count;
+                }
             } catch (DataFormatException dfe) {
                 throw new IOException(
                     "Error while uncompressing packet from server.");
             }
-
-            this.inflater.end();
         } else {
             //	
             //	Read data, note this this code is reached when using
             //  compressed packets that have not been compressed, as well
             //
-            uncompressedBuffer = new byte[packetLength + 1];
-            readFully(uncompressedBuffer, 0, packetLength);
+            this.uncompressedPacket = ensureCapacity(this.uncompressedPacket,
+                    packetLength);
+            readFully(this.uncompressedPacket, 0, packetLength);
+            uncompressedLength = packetLength;
         }
 
-        if ((this.uncompressedPacket != null)
-                && (this.pos < this.uncompressedPacket.length)) {
-            int remainingLength = this.uncompressedPacket.length - this.pos;
-
-            byte[] combinedBuffer = new byte[remainingLength
-                + uncompressedBuffer.length];
-            System.arraycopy(this.uncompressedPacket, this.pos, combinedBuffer, 0,
-                remainingLength);
-            System.arraycopy(uncompressedBuffer, 0, combinedBuffer,
-                remainingLength, uncompressedBuffer.length);
-            uncompressedBuffer = combinedBuffer;
-        }
-
-        this.uncompressedPacket = uncompressedBuffer;
         this.pos = 0;
-
-        return;
+        this.limit = uncompressedLength;
     }
 
     /**
-     * Determines if another packet needs to be read from the server
-     * to be able to read numBytes from the stream.
+     * Reads packets from the server until there is at least one byte to
+     * hand out.
      *
-     * @param numBytes the number of bytes to be read
      * @throws IOException if an I/O error occors.
      */
-    private void getNextPacketIfRequired(int numBytes)
-        throws IOException {
-        if ((this.uncompressedPacket == null)
-                || ((this.pos + numBytes) > this.uncompressedPacket.length)) {
+    private void getNextPacketIfRequired() throws IOException {
+        while (this.pos >= this.limit) {
             getNextPacketFromServer();
         }
     }
 
+    /**
+     * Returns a buffer that holds at least len bytes, re-using b if it is
+     * big enough and not too big to keep around.
+     *
+     * @param b the current buffer, may be null
+     * @param len the number of bytes needed
+     *
+     * @return b, or a new buffer
+     */
+    private static byte[] ensureCapacity(byte[] b, int len) {
+        if ((b == null) || (b.length < len)
+                || ((b.length > MAX_RETAINED_BUFFER)
+                && (len <= MAX_RETAINED_BUFFER))) {
+            return new byte[Math.max(len, MIN_BUFFER)];
+        }
+
+        return b;
+    }
+
     private final int readFully(byte[] b, int off, int len)
         throws IOException {
         if (len < 0) {
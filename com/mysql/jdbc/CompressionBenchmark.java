@@ -0,0 +1,261 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+
+/**
+ * Measures the compressed protocol for a range of packet sizes: how much
+ * smaller result-set-like text gets on the wire, how fast it deflates
+ * (framed the way MysqlIO.compressPacket() frames it) and how fast
+ * CompressedInputStream under a PacketReader gives it back, next to the
+ * same packets read uncompressed.
+ *
+ * <pre>
+ *     java com.mysql.jdbc.CompressionBenchmark [MB per size] [size ...]
+ * </pre>
+ */
+public class CompressionBenchmark {
+    /** Keeps the JIT from throwing the reads away */
+    private static long sink = 0;
+
+    /**
+     * Entry point for program when called from the command line.
+     *
+     * @param args command-line args. Arg 1 is how many MB of payload to
+     *        read per packet size (128 if not given), the rest are packet
+     *        sizes in bytes.
+     *
+     * @throws Exception if any errors occur
+     */
+    public static void main(String[] args) throws Exception {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 128;
+        int[] sizes = { 64, 1024, 16 * 1024, 256 * 1024, 4 * 1024 * 1024 };
+
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        byte[] text = rowText(8 * 1024 * 1024);
+
+        for (int s = 0; s < sizes.length; s++) {
+            int packetLength = sizes[s];
+            int packets = Math.max(1,
+                    Math.min(text.length / packetLength, 16 * 1024));
+
+            byte[] plain = packets(text, packetLength, packets);
+
+            compressedFrames(plain, packetLength);
+
+            long t0 = System.nanoTime();
+            byte[] compressed = compressedFrames(plain, packetLength);
+            long deflateNs = System.nanoTime() - t0;
+
+            long payload = (long) packets * packetLength;
+            int rounds = (int) Math.max(1,
+                    ((long) megabytes * 1024 * 1024) / payload);
+
+            for (int warm = 0; warm < 3; warm++) {
+                read(compressed, true, packets, Math.max(1, rounds / 10));
+                read(plain, false, packets, Math.max(1, rounds / 10));
+            }
+
+            long a0 = allocated();
+
+            t0 = System.nanoTime();
+            read(compressed, true, packets, rounds);
+
+            long inflateNs = System.nanoTime() - t0;
+            long inflateBytes = allocated() - a0;
+
+            t0 = System.nanoTime();
+            read(plain, false, packets, rounds);
+
+            long plainNs = System.nanoTime() - t0;
+
+            System.out.println("packet=" + packetLength + " ratio="
+                + percent(compressed.length, plain.length) + "%"
+                + " deflate MB/s=" + mbPerSecond(payload, deflateNs)
+                + " compressed read MB/s="
+                + mbPerSecond(payload * rounds, inflateNs)
+                + " plain read MB/s=" + mbPerSecond(payload * rounds, plainNs)
+                + " bytes/packet="
+                + (inflateBytes / ((long) packets * rounds)));
+        }
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void read(byte[] block, boolean compressed, int packets,
+        int rounds) throws IOException {
+        InputStream in = new PacketReadBenchmark.RepeatingInputStream(block,
+                rounds);
+        PacketReader reader = compressed
+            ? new PacketReader(new CompressedInputStream(in),
+                PacketReader.DEFAULT_READ_AHEAD)
+            : new PacketReader(in, PacketReader.DEFAULT_READ_AHEAD);
+        byte[] buffer = new byte[0];
+
+        for (long i = (long) packets * rounds; i > 0; i--) {
+            int packetLength = reader.readHeader();
+
+            if (buffer.length <= packetLength) {
+                buffer = new byte[packetLength + 1];
+            }
+
+            reader.readPayload(buffer, 0, packetLength);
+            sink += buffer[packetLength >> 1];
+        }
+    }
+
+    /**
+     * Cuts text into packets, each with its 4-byte header.
+     */
+    private static byte[] packets(byte[] text, int packetLength, int packets) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int p = 0; p < packets; p++) {
+            out.write(packetLength & 0xff);
+            out.write((packetLength >>> 8) & 0xff);
+            out.write((packetLength >>> 16) & 0xff);
+            out.write(p & 0xff);
+            out.write(text, (p * packetLength) % (text.length - packetLength
+                + 1), packetLength);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps each packet in a compressed protocol frame, deflated if that
+     * makes it smaller, as compressPacket() does.
+     */
+    private static byte[] compressedFrames(byte[] plain, int packetLength) {
+        int frameLength = packetLength + MysqlIO.HEADER_LENGTH;
+        int headerLength = MysqlIO.HEADER_LENGTH + MysqlIO.COMP_HEADER_LENGTH;
+        Deflater deflater = new Deflater();
+        byte[] frame = new byte[frameLength + headerLength];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int offset = 0; offset < plain.length; offset += frameLength) {
+            int compLen = 0;
+
+            if (frameLength >= MysqlIO.MIN_COMPRESS_LEN) {
+                deflater.reset();
+                deflater.setInput(plain, offset, frameLength);
+                deflater.finish();
+                compLen = deflater.deflate(frame, headerLength, frameLength - 1);
+
+                if (!deflater.finished()) {
+                    compLen = 0;
+                }
+            }
+
+            int wireLength = (compLen > 0) ? compLen : frameLength;
+
+            frame[0] = (byte) wireLength;
+            frame[1] = (byte) (wireLength >>> 8);
+            frame[2] = (byte) (wireLength >>> 16);
+            frame[3] = 0;
+            frame[4] = (byte) ((compLen > 0) ? frameLength : 0);
+            frame[5] = (byte) ((compLen > 0) ? (frameLength >>> 8) : 0);
+            frame[6] = (byte) ((compLen > 0) ? (frameLength >>> 16) : 0);
+
+            if (compLen == 0) {
+                System.arraycopy(plain, offset, frame, headerLength,
+                    frameLength);
+            }
+
+            out.write(frame, 0, headerLength + wireLength);
+        }
+
+        deflater.end();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Text that looks like rows of a typical result set: ids, names,
+     * timestamps and a status, with enough variation that it doesn't
+     * compress to nothing.
+     */
+    private static byte[] rowText(int length) {
+        String[] names = {
+                "beach", "IMG_", "DSC", "party", "sunset", "holiday", "cat",
+                "wedding"
+            };
+        String[] states = { "public", "friends", "family", "private" };
+        Random random = new Random(3);
+        StringBuffer buf = new StringBuffer(length + 200);
+
+        for (int row = 0; buf.length() < length; row++) {
+            buf.append(100000 + random.nextInt(900000));
+            buf.append('\t');
+            buf.append(names[random.nextInt(names.length)]);
+            buf.append(random.nextInt(10000));
+            buf.append(".jpg\t2009-06-");
+            buf.append(10 + random.nextInt(20));
+            buf.append(' ');
+            buf.append(10 + random.nextInt(13));
+            buf.append(':');
+            buf.append(10 + random.nextInt(50));
+            buf.append(":00\t");
+            buf.append(random.nextInt(20000000));
+            buf.append('\t');
+            buf.append(states[random.nextInt(states.length)]);
+            buf.append('\n');
+        }
+
+        byte[] text = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) buf.charAt(i);
+        }
+
+        return text;
+    }
+
+    private static String percent(long part, long whole) {
+        return String.valueOf(Math.round((part * 1000.0) / whole) / 10.0);
+    }
+
+    private static long mbPerSecond(long bytes, long ns) {
+        return (bytes * 1000000000L) / (ns * 1024 * 1024);
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread()
+                                                          .getId());
+    }
+}
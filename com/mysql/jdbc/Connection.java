@@ -112,6 +112,9 @@ public class Connection implements java.sql.Connection {
     /** Internal DBMD to use for various database-version specific features */
     private DatabaseMetaData dbmd = null;
 
+    /** Runs executeQueryAsync() and executeUpdateAsync(), created on first use */
+    private AsyncQueryDriver asyncDriver = null;
+
     /** The list of host(s) to try and connect to */
     private List hostList = null;
 
@@ -204,6 +207,15 @@ public class Connection implements java.sql.Connection {
     /** Should we clobber streaming results on new queries, or issue an error? */
     private boolean clobberStreamingResults = false;
 
+    /** Should streaming result sets read ahead on a thread of their own? */
+    private boolean prefetchStreamingRows = false;
+
+    /** How many rows streaming result sets read from the server at a time */
+    private int streamingFetchSize = 1;
+
+    /** Should read-only result sets be kept in RowDataCompact? */
+    private boolean useCompactRowStorage = false;
+
     /**
      * Should we continue processing batch commands if one fails. The JDBC spec
      * allows either way, so we let the user choose
@@ -615,6 +627,36 @@ public class Connection implements java.sql.Connection {
         return this.clobberStreamingResults;
     }
 
+    /**
+     * Returns whether streaming result sets read their next batch of rows on
+     * a thread of their own, while the current batch is being used.
+     *
+     * @return true if streaming result sets prefetch
+     */
+    public boolean getPrefetchStreamingRows() {
+        return this.prefetchStreamingRows;
+    }
+
+    /**
+     * Returns how many rows streaming result sets read from the server at a
+     * time, until ResultSet.setFetchSize() says otherwise.
+     *
+     * @return the streaming fetch size, 1 or more
+     */
+    public int getStreamingFetchSize() {
+        return this.streamingFetchSize;
+    }
+
+    /**
+     * Returns whether read-only result sets keep their rows in a few large
+     * arrays (see RowDataCompact) rather than an array per value.
+     *
+     * @return true if compact row storage is in use
+     */
+    public boolean getUseCompactRowStorage() {
+        return this.useCompactRowStorage;
+    }
+
     /**
      * DOCUMENT ME!
      *
@@ -1158,6 +1200,211 @@ public class Connection implements java.sql.Connection {
         return createStatement(resultSetType, resultSetConcurrency);
     }
 
+    /**
+     * Sends all of the given statements to the server before reading any of
+     * their results, then reads the results in order. A run of independent
+     * statements (such as inserts) then costs about one round trip instead
+     * of one per statement. Statements are sent as-is, without escape
+     * processing, and LOAD DATA LOCAL INFILE can not be pipelined.
+     *
+     * @param sql the statements to execute
+     *
+     * @return one result per statement, in order, either a result set or an
+     *         update count (see ResultSet.getUpdateCount())
+     *
+     * @throws java.sql.BatchUpdateException if any statement failed, after
+     *         all of the others have run. The update counts are
+     *         EXECUTE_FAILED for the failed statements, and each failure is
+     *         chained with setNextException(), in statement order.
+     * @throws SQLException if a database access error occurs
+     */
+    public java.sql.ResultSet[] executePipelined(String[] sql)
+        throws SQLException {
+        if (Driver.TRACE) {
+            Object[] args = { sql };
+            Debug.methodCall(this, "executePipelined", args);
+        }
+
+        checkClosed();
+
+        for (int i = 0; i < sql.length; i++) {
+            if (StringUtils.startsWithIgnoreCaseAndWs(sql[i], "LOAD DATA")) {
+                throw new SQLException("Statement " + (i + 1)
+                    + ": LOAD DATA can not be pipelined",
+                    SQLError.SQL_STATE_ILLEGAL_ARGUMENT);
+            }
+        }
+
+        SQLException[] errors = new SQLException[sql.length];
+        ResultSet[] results = execSQLPipelined(sql, true, errors);
+
+        //
+        // Map failures back to the statements that caused them
+        //
+        int[] updateCounts = new int[sql.length];
+        int firstFailed = -1;
+
+        for (int i = 0; i < sql.length; i++) {
+            if (errors[i] != null) {
+                updateCounts[i] = java.sql.Statement.EXECUTE_FAILED;
+
+                if (firstFailed == -1) {
+                    firstFailed = i;
+                }
+            } else if (results[i].reallyResult()) {
+                updateCounts[i] = java.sql.Statement.SUCCESS_NO_INFO;
+            } else {
+                updateCounts[i] = (int) results[i].getUpdateCount();
+            }
+        }
+
+        if (firstFailed != -1) {
+            java.sql.BatchUpdateException batchEx = new java.sql.BatchUpdateException("Statement "
+                    + (firstFailed + 1) + ": " + errors[firstFailed].getMessage(),
+                    errors[firstFailed].getSQLState(),
+                    errors[firstFailed].getErrorCode(), updateCounts);
+
+            for (int i = firstFailed; i < sql.length; i++) {
+                if (errors[i] != null) {
+                    batchEx.setNextException(new SQLException("Statement "
+                            + (i + 1) + ": " + errors[i].getMessage(),
+                            errors[i].getSQLState(), errors[i].getErrorCode()));
+                }
+            }
+
+            throw batchEx;
+        }
+
+        return results;
+    }
+
+    /**
+     * Queues a query to run on this connection's I/O thread, and returns
+     * straight away. Queries queued together are pipelined (see
+     * executePipelined()), and each future completes, in order, with the
+     * fully-read (not streaming) result set, always in RowDataStatic, even
+     * with useCompactRowStorage. Statements are sent as-is,
+     * without escape processing.
+     *
+     * <p>
+     * Futures complete on the I/O thread, and so do stages attached with
+     * thenApply(), thenAccept() and the like, holding up every query queued
+     * behind them. Use the *Async variants with an executor for anything
+     * slow, and never wait on another of this connection's futures from a
+     * stage that runs on the I/O thread.
+     * </p>
+     *
+     * @param sql the query to execute
+     *
+     * @return a future for the query's result set
+     *
+     * @throws SQLException if the connection is closed
+     */
+    public java.util.concurrent.CompletableFuture<java.sql.ResultSet> executeQueryAsync(
+        String sql) throws SQLException {
+        if (Driver.TRACE) {
+            Object[] args = { sql };
+            Debug.methodCall(this, "executeQueryAsync", args);
+        }
+
+        return getAsyncDriver().submitQuery(sql);
+    }
+
+    /**
+     * Like executeQueryAsync(), but the future completes with the
+     * statement's update count. It completes on the I/O thread too.
+     *
+     * @param sql the statement to execute
+     *
+     * @return a future for the update count
+     *
+     * @throws SQLException if the connection is closed
+     */
+    public java.util.concurrent.CompletableFuture<Integer> executeUpdateAsync(
+        String sql) throws SQLException {
+        if (Driver.TRACE) {
+            Object[] args = { sql };
+            Debug.methodCall(this, "executeUpdateAsync", args);
+        }
+
+        return getAsyncDriver().submitUpdate(sql);
+    }
+
+    private synchronized AsyncQueryDriver getAsyncDriver()
+        throws SQLException {
+        checkClosed();
+
+        if (this.asyncDriver == null) {
+            this.asyncDriver = new AsyncQueryDriver(this);
+        }
+
+        return this.asyncDriver;
+    }
+
+    /**
+     * Runs statements through MysqlIO.sqlQueryPipelined(), with the same
+     * locking and error handling as execSQL().
+     *
+     * @param sql the statements to execute
+     * @param allowCompactRows may rows go in RowDataCompact if
+     *        useCompactRowStorage is set? If false they always go in
+     *        RowDataStatic.
+     * @param errors filled in with the exception each failed statement
+     *        caused
+     *
+     * @return the results, null where a statement failed
+     *
+     * @throws SQLException if communication with the server fails
+     */
+    ResultSet[] execSQLPipelined(String[] sql, boolean allowCompactRows,
+        SQLException[] errors) throws SQLException {
+        synchronized (this.mutex) {
+            this.lastQueryFinishedTime = 0; // we're busy!
+
+            pingAndReconnect(false);
+
+            try {
+                String encoding = null;
+
+                if (useUnicode()) {
+                    encoding = getEncoding();
+                }
+
+                return this.io.sqlQueryPipelined(sql, encoding,
+                        java.sql.ResultSet.CONCUR_READ_ONLY, this.database,
+                        allowCompactRows, errors);
+            } catch (java.sql.SQLException sqlE) {
+                // don't clobber SQL exceptions
+                String sqlState = sqlE.getSQLState();
+
+                if ((sqlState != null) && sqlState.equals(SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE)) {
+                    cleanup(sqlE);
+                }
+
+                throw sqlE;
+            } catch (Exception ex) {
+                if (ex instanceof IOException) {
+                    cleanup(ex);
+                }
+
+                String exceptionType = ex.getClass().getName();
+                String exceptionMessage = ex.getMessage();
+
+                if (!this.useParanoidErrorMessages()) {
+                    exceptionMessage += "\n\nNested Stack Trace:\n";
+                    exceptionMessage += Util.stackTraceToString(ex);
+                }
+
+                throw new java.sql.SQLException(
+                    "Error during query: Unexpected Exception: "
+                    + exceptionType + " message given: " + exceptionMessage,
+                    SQLError.SQL_STATE_GENERAL_ERROR);
+            } finally {
+                this.lastQueryFinishedTime = System.currentTimeMillis();
+            }
+        }
+    }
+
     /**
      * DOCUMENT ME!
      *
@@ -1820,6 +2067,13 @@ public class Connection implements java.sql.Connection {
             }
         }
 
+        synchronized (this) {
+            if (this.asyncDriver != null) {
+                this.asyncDriver.shutdown();
+                this.asyncDriver = null;
+            }
+        }
+
         if (this.io != null) {
             try {
                 this.io.quit();
@@ -2440,6 +2694,37 @@ public class Connection implements java.sql.Connection {
                     "clobberStreamingResults").equalsIgnoreCase("TRUE");
         }
 
+        if (info.getProperty("streamingFetchSize") != null) {
+            String streamingFetchSizeStr = info.getProperty(
+                    "streamingFetchSize");
+
+            try {
+                int rows = Integer.parseInt(streamingFetchSizeStr);
+
+                if (rows < 1) {
+                    throw new SQLException("Illegal (< 1)  value '"
+                        + streamingFetchSizeStr + "' for 'streamingFetchSize'",
+                        SQLError.SQL_STATE_ILLEGAL_ARGUMENT);
+                }
+
+                this.streamingFetchSize = rows;
+            } catch (NumberFormatException nfe) {
+                throw new SQLException("Illegal non-numeric value '"
+                    + streamingFetchSizeStr + "' for 'streamingFetchSize'",
+                    SQLError.SQL_STATE_ILLEGAL_ARGUMENT);
+            }
+        }
+
+        if (info.getProperty("prefetchStreamingRows") != null) {
+            this.prefetchStreamingRows = info.getProperty(
+                    "prefetchStreamingRows").equalsIgnoreCase("TRUE");
+        }
+
+        if (info.getProperty("useCompactRowStorage") != null) {
+            this.useCompactRowStorage = info.getProperty(
+                    "useCompactRowStorage").equalsIgnoreCase("TRUE");
+        }
+
         if (info.getProperty("strictUpdates") != null) {
             this.strictUpdates = info.getProperty("strictUpdates")
                                      .equalsIgnoreCase("TRUE");
@@ -0,0 +1,278 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.management.ManagementFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Times sending large packets over a loopback SocketChannel the way
+ * sendSplitPacketsGathered() does (headers and slices of the packet's own
+ * array in one gathering write) against the way sendSplitPackets() does
+ * (each slice copied behind its header into a split buffer, then written
+ * through a 16K BufferedOutputStream on the socket's stream).
+ *
+ * <p>
+ * The receiving side drains into a direct buffer and acknowledges each
+ * packet, so a send is only counted once the last byte has arrived. Both
+ * paths are always taken, even for payloads under the split size, which
+ * the driver would send as one packet through the buffered stream. The
+ * split size defaults to the protocol's (16M - 1); a smaller one shows how
+ * the paths compare when a payload spans several packets.
+ * </p>
+ *
+ * <pre>
+ *     java com.mysql.jdbc.GatherWriteBenchmark [split size] [MB ...]
+ * </pre>
+ */
+public class GatherWriteBenchmark {
+    /**
+     * Entry point for program when called from the command line.
+     *
+     * @param args command-line args. Arg 1 is the split size in bytes, the
+     *        rest are payload sizes in MB (1 to 64 if not given).
+     *
+     * @throws Exception if any errors occur
+     */
+    public static void main(String[] args) throws Exception {
+        int splitSize = (args.length > 0) ? Integer.parseInt(args[0])
+                                          : ((256 * 256 * 256) - 1);
+        int[] sizes = { 1, 4, 16, 32, 64 };
+
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+
+        server.socket().bind(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), 0));
+
+        SocketChannel channel = SocketChannel.open(server.socket()
+                                                         .getLocalSocketAddress());
+        final SocketChannel peer = server.accept();
+
+        // as ChannelSocketFactory sets it up
+        channel.socket().setTcpNoDelay(true);
+
+        Thread drain = new Thread("drain") {
+                public void run() {
+                    drain(peer);
+                }
+            };
+
+        drain.setDaemon(true);
+        drain.start();
+
+        OutputStream out = new BufferedOutputStream(channel.socket()
+                                                           .getOutputStream(),
+                16384);
+        byte[] splitBuffer = new byte[splitSize + MysqlIO.HEADER_LENGTH];
+
+        System.out.println("split size " + splitSize);
+
+        for (int s = 0; s < sizes.length; s++) {
+            int payload = sizes[s] * 1024 * 1024;
+            byte[] packet = new byte[payload + MysqlIO.HEADER_LENGTH];
+            int sends = Math.max(4, 512 / sizes[s]);
+
+            for (int warm = 0; warm < 2; warm++) {
+                send(channel, out, splitBuffer, packet, payload, splitSize,
+                    true);
+                send(channel, out, splitBuffer, packet, payload, splitSize,
+                    false);
+            }
+
+            long gatherNs = 0;
+            long gatherBytes = 0;
+            long copyNs = 0;
+            long copyBytes = 0;
+
+            for (int i = 0; i < sends; i++) {
+                long a0 = allocated();
+                long t0 = System.nanoTime();
+
+                send(channel, out, splitBuffer, packet, payload, splitSize,
+                    true);
+                gatherNs += (System.nanoTime() - t0);
+                gatherBytes += (allocated() - a0);
+
+                a0 = allocated();
+                t0 = System.nanoTime();
+                send(channel, out, splitBuffer, packet, payload, splitSize,
+                    false);
+                copyNs += (System.nanoTime() - t0);
+                copyBytes += (allocated() - a0);
+            }
+
+            long total = (long) payload * sends;
+
+            System.out.println(sizes[s] + "MB: gathered "
+                + mbPerSecond(total, gatherNs) + " MB/s "
+                + (gatherBytes / sends) + " bytes/send, copied "
+                + mbPerSecond(total, copyNs) + " MB/s " + (copyBytes / sends)
+                + " bytes/send");
+        }
+
+        channel.close();
+    }
+
+    /**
+     * Sends one packet of payload bytes, split at splitSize, and waits for
+     * the receiving side to acknowledge it.
+     */
+    private static void send(SocketChannel channel, OutputStream out,
+        byte[] splitBuffer, byte[] packet, int payload, int splitSize,
+        boolean gathered) throws IOException {
+        int packetCount = (payload / splitSize) + 1;
+        ByteBuffer length = ByteBuffer.allocate(8);
+
+        length.putLong(payload
+            + ((long) packetCount * MysqlIO.HEADER_LENGTH)).flip();
+
+        while (length.hasRemaining()) {
+            channel.write(length);
+        }
+
+        if (gathered) {
+            byte[] headers = new byte[packetCount * MysqlIO.HEADER_LENGTH];
+            ByteBuffer[] slices = new ByteBuffer[packetCount * 2];
+            int pos = MysqlIO.HEADER_LENGTH;
+            int remaining = payload;
+            long toWrite = 0;
+
+            for (int i = 0; i < packetCount; i++) {
+                int chunk = Math.min(remaining, splitSize);
+                int h = i * MysqlIO.HEADER_LENGTH;
+
+                headers[h] = (byte) chunk;
+                headers[h + 1] = (byte) (chunk >>> 8);
+                headers[h + 2] = (byte) (chunk >>> 16);
+                headers[h + 3] = (byte) i;
+                slices[i * 2] = ByteBuffer.wrap(headers, h,
+                        MysqlIO.HEADER_LENGTH);
+                slices[(i * 2) + 1] = ByteBuffer.wrap(packet, pos, chunk);
+                toWrite += (MysqlIO.HEADER_LENGTH + chunk);
+                pos += chunk;
+                remaining -= chunk;
+            }
+
+            while (toWrite > 0) {
+                toWrite -= channel.write(slices);
+            }
+        } else {
+            int pos = MysqlIO.HEADER_LENGTH;
+            int remaining = payload;
+
+            for (int i = 0; i < packetCount; i++) {
+                int chunk = Math.min(remaining, splitSize);
+
+                splitBuffer[0] = (byte) chunk;
+                splitBuffer[1] = (byte) (chunk >>> 8);
+                splitBuffer[2] = (byte) (chunk >>> 16);
+                splitBuffer[3] = (byte) i;
+                System.arraycopy(packet, pos, splitBuffer,
+                    MysqlIO.HEADER_LENGTH, chunk);
+                out.write(splitBuffer, 0, MysqlIO.HEADER_LENGTH + chunk);
+                out.flush();
+                pos += chunk;
+                remaining -= chunk;
+            }
+        }
+
+        ByteBuffer ack = ByteBuffer.allocate(1);
+
+        while (ack.hasRemaining()) {
+            if (channel.read(ack) < 0) {
+                throw new IOException("receiver went away");
+            }
+        }
+    }
+
+    /**
+     * Reads length-prefixed sends and acknowledges each with one byte.
+     */
+    private static void drain(SocketChannel peer) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+        ByteBuffer ack = ByteBuffer.allocate(1);
+
+        try {
+            while (true) {
+                buf.clear().limit(8);
+
+                while (buf.hasRemaining()) {
+                    if (peer.read(buf) < 0) {
+                        return;
+                    }
+                }
+
+                long left = buf.getLong(0);
+
+                while (left > 0) {
+                    buf.clear();
+
+                    if (left < buf.capacity()) {
+                        buf.limit((int) left);
+                    }
+
+                    int n = peer.read(buf);
+
+                    if (n < 0) {
+                        return;
+                    }
+
+                    left -= n;
+                }
+
+                ack.clear();
+
+                while (ack.hasRemaining()) {
+                    peer.write(ack);
+                }
+            }
+        } catch (IOException ioEx) {
+            // the sender closed, we're done
+        }
+    }
+
+    private static long mbPerSecond(long bytes, long ns) {
+        return (bytes * 1000000000L) / (ns * 1024 * 1024);
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread()
+                                                          .getId());
+    }
+}
@@ -26,11 +26,15 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 
 import java.lang.ref.SoftReference;
 
 import java.net.Socket;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
 import java.security.NoSuchAlgorithmException;
 
 import java.sql.SQLException;
@@ -39,7 +43,6 @@ import java.sql.SQLWarning;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 
 /**
@@ -54,7 +57,14 @@ public class MysqlIO {
     static final int NULL_LENGTH = ~0;
     static final int COMP_HEADER_LENGTH = 3;
     static final int MIN_COMPRESS_LEN = 50;
+
+    /** Most uncompressed bytes one compressed packet can carry */
+    static final int MAX_COMPRESSED_FRAME = (256 * 256 * 256) - 1;
     static final int HEADER_LENGTH = 4;
+    private static final int FIELD_BYTES_CHUNK = 8192;
+
+    /** Bytes of queries sqlQueryPipelined() sends ahead of their results */
+    private static final int PIPELINE_WINDOW = 65536;
     private static int maxBufferSize = 65535;
     private static final int CLIENT_COMPRESS = 32; /* Can use compression
     protcol */
@@ -118,7 +128,9 @@ public class MysqlIO {
     private BufferedOutputStream mysqlOutput = null;
     private com.mysql.jdbc.Connection connection;
     private Deflater deflater = null;
-    private Inflater inflater = null;
+
+    /** Re-used by compressPacket() */
+    private Buffer compressedPacket = null;
 
     /** Buffered data from the server */
 
@@ -132,6 +144,19 @@ public class MysqlIO {
 
     //private DataInputStream      _Mysql_Input              = null;
     private InputStream mysqlInput = null;
+
+    /** Frames packets out of mysqlInput's read-ahead */
+    private PacketReader packetReader = null;
+
+    /** Byte arrays for packets we read, see readPacket() */
+    private PacketBufferPool packetBufferPool = new PacketBufferPool();
+
+    /**
+     * Column definitions are copied here so their packets can go back to
+     * packetBufferPool, Fields keep pointing into it
+     */
+    private byte[] fieldBytes = null;
+    private int fieldBytesPos = 0;
     private RowData streamingData = null;
 
     //
@@ -141,6 +166,13 @@ public class MysqlIO {
 
     /** The connection to the server */
     private Socket mysqlConnection = null;
+
+    /**
+     * The connection's channel, if the socket factory gave us one. Used to
+     * read packets into a direct buffer and to send split packets without
+     * staging copies.
+     */
+    private SocketChannel socketChannel = null;
     private SocketFactory socketFactory = null;
 
     //
@@ -183,6 +215,12 @@ public class MysqlIO {
     private boolean useNewUpdateCounts = false; // should we use the new larger update counts?
     private byte packetSequence = 0;
     private byte protocolVersion = 0;
+
+    /**
+     * Responses to pipelined queries still on the wire, which
+     * clearInputStream() must not throw away
+     */
+    private int pipelinedResponsesPending = 0;
     private int clientParam = 0;
 
     // changed once we've connected.
@@ -228,8 +266,27 @@ public class MysqlIO {
         }
 
         this.mysqlConnection = this.socketFactory.beforeHandshake();
-        this.mysqlInput = new BufferedInputStream(this.mysqlConnection
-                .getInputStream(), 16384);
+
+        if (this.socketFactory instanceof ChannelSocketFactory) {
+            this.socketChannel = ((ChannelSocketFactory) this.socketFactory)
+                .getChannel();
+        } else {
+            this.socketChannel = this.mysqlConnection.getChannel();
+        }
+
+        //
+        // Blocking channel reads don't honor SO_TIMEOUT, so only read the
+        // channel directly if there's no timeout to enforce
+        //
+        if ((this.socketChannel != null) && (socketTimeout == 0)) {
+            this.packetReader = new PacketReader(this.socketChannel,
+                    PacketReader.DEFAULT_READ_AHEAD);
+        } else {
+            this.packetReader = new PacketReader(this.mysqlConnection
+                    .getInputStream(), PacketReader.DEFAULT_READ_AHEAD);
+        }
+
+        this.mysqlInput = this.packetReader;
         this.mysqlOutput = new BufferedOutputStream(this.mysqlConnection
                 .getOutputStream(), 16384);
         this.isInteractiveClient = this.connection.isInteractiveClient();
@@ -264,6 +321,31 @@ public class MysqlIO {
     protected ResultSet getResultSet(long columnCount, int maxRows,
         int resultSetType, boolean streamResults, String catalog)
         throws Exception {
+        return getResultSet(columnCount, maxRows, resultSetType,
+            streamResults, catalog, true);
+    }
+
+    /**
+     * Build a result set, as above.
+     *
+     * @param columnCount the number of columns in the result set
+     * @param maxRows the maximum number of rows to read (-1 means all rows)
+     * @param resultSetType the type of result set (CONCUR_UPDATABLE or
+     *        READ_ONLY)
+     * @param streamResults should the result set be read all at once, or
+     *        streamed?
+     * @param catalog the database name in use when the result set was created
+     * @param allowCompactRows may read-only rows go in RowDataCompact if
+     *        the connection is set up for it? If false they always go in
+     *        RowDataStatic.
+     *
+     * @return a result set
+     *
+     * @throws Exception if a database access error occurs
+     */
+    protected ResultSet getResultSet(long columnCount, int maxRows,
+        int resultSetType, boolean streamResults, String catalog,
+        boolean allowCompactRows) throws Exception {
         Buffer packet; // The packet from the server
         Field[] fields = new Field[(int) columnCount];
 
@@ -271,13 +353,40 @@ public class MysqlIO {
         for (int i = 0; i < columnCount; i++) {
             packet = readPacket();
             fields[i] = unpackField(packet, false);
+            this.packetBufferPool.release(packet.getByteBuffer());
         }
 
         packet = reuseAndReadPacket(this.reusablePacket);
 
         RowData rowData = null;
 
-        if (!streamResults) {
+        if (!streamResults && (resultSetType != java.sql.ResultSet.CONCUR_UPDATABLE)
+                && allowCompactRows
+                && this.connection.getUseCompactRowStorage()) {
+            RowDataCompact rows = new RowDataCompact((int) columnCount);
+            int rowCount = 0;
+
+            while ((rowCount < maxRows) && nextRow(rows, (int) columnCount)) {
+                rowCount++;
+            }
+
+            //
+            // Clear any outstanding data left on the wire
+            // when we've artifically limited the number of 
+            // rows we retrieve (fix for BUG#1695)
+            //
+            if (rowCount <= maxRows) {
+                clearInputStream();
+            }
+
+            if (Driver.TRACE) {
+                Debug.msg(this,
+                    "* Fetched " + rows.size() + " rows from server *");
+            }
+
+            rowData = rows;
+            reclaimLargeReusablePacket();
+        } else if (!streamResults) {
             ArrayList rows = new ArrayList();
 
             // Now read the data
@@ -319,7 +428,9 @@ public class MysqlIO {
             rowData = new RowDataStatic(rows);
             reclaimLargeReusablePacket();
         } else {
-            rowData = new RowDataDynamic(this, (int) columnCount);
+            rowData = new RowDataDynamic(this, (int) columnCount,
+                    this.connection.getStreamingFetchSize(),
+                    this.connection.getPrefetchStreamingRows());
             this.streamingData = rowData;
         }
 
@@ -330,6 +441,12 @@ public class MysqlIO {
      * Forcibly closes the underlying socket to MySQL.
      */
     protected final void forceClose() {
+        if (this.profileSql) {
+            System.err.println("Packet buffer pool\thits:\t"
+                + this.packetBufferPool.getHits() + "\tmisses:\t"
+                + this.packetBufferPool.getMisses());
+        }
+
         try {
             if (this.mysqlInput != null) {
                 this.mysqlInput.close();
@@ -381,6 +498,13 @@ public class MysqlIO {
      */
     protected final Field unpackField(Buffer packet,
         boolean extractDefaultValues) {
+        //
+        // Fields materialize their strings lazily from the bytes they
+        // are given, so give them a copy that outlives the packet
+        //
+        int base = copyFieldBytes(packet);
+        byte[] fieldData = this.fieldBytes;
+
         if (this.use41Extensions) {
             // we only store the position of the string and
             // materialize only if needed...
@@ -440,11 +564,16 @@ public class MysqlIO {
                 defaultValueLength = packet.fastSkipLenString();
             }
 
-            Field field = new Field(this.connection, packet.getByteBuffer(),
-                    databaseNameStart, databaseNameLength, tableNameStart,
-                    tableNameLength, originalTableNameStart,
-                    originalTableNameLength, nameStart, nameLength,
-                    originalColumnNameStart, originalColumnNameLength,
+            if (defaultValueStart != -1) {
+                defaultValueStart += base;
+            }
+
+            Field field = new Field(this.connection, fieldData,
+                    databaseNameStart + base, databaseNameLength,
+                    tableNameStart + base, tableNameLength,
+                    originalTableNameStart + base, originalTableNameLength,
+                    nameStart + base, nameLength,
+                    originalColumnNameStart + base, originalColumnNameLength,
                     colLength, colType, colFlag, colDecimals,
                     defaultValueStart, defaultValueLength, charSetNumber);
 
@@ -472,14 +601,40 @@ public class MysqlIO {
                 colDecimals++;
             }
 
-            Field field = new Field(this.connection, packet.getBufferSource(),
-                    nameStart, nameLength, tableNameStart, tableNameLength,
-                    colLength, colType, colFlag, colDecimals);
+            Field field = new Field(this.connection, fieldData,
+                    nameStart + base, nameLength, tableNameStart + base,
+                    tableNameLength, colLength, colType, colFlag, colDecimals);
 
             return field;
         }
     }
 
+    /**
+     * Copies a column definition packet into fieldBytes, starting a new
+     * chunk when the current one is full. Chunks are never written over,
+     * only appended to, so Fields from earlier result sets stay valid.
+     *
+     * @param packet the column definition packet
+     *
+     * @return the offset of the packet's first byte in fieldBytes
+     */
+    private int copyFieldBytes(Buffer packet) {
+        int len = packet.getBufLength();
+
+        if ((this.fieldBytes == null)
+                || ((this.fieldBytesPos + len) > this.fieldBytes.length)) {
+            this.fieldBytes = new byte[Math.max(FIELD_BYTES_CHUNK, len)];
+            this.fieldBytesPos = 0;
+        }
+
+        int base = this.fieldBytesPos;
+
+        System.arraycopy(packet.getByteBuffer(), 0, this.fieldBytes, base, len);
+        this.fieldBytesPos += len;
+
+        return base;
+    }
+
     /**
      * Determines if the database charset is the same as the platform charset
      */
@@ -824,8 +979,10 @@ public class MysqlIO {
                 ((javax.net.ssl.SSLSocket) this.mysqlConnection)
                 .setEnabledProtocols(new String[] { "TLSv1" });
                 ((javax.net.ssl.SSLSocket) this.mysqlConnection).startHandshake();
-                this.mysqlInput = new BufferedInputStream(this.mysqlConnection
-                        .getInputStream(), 16384);
+                this.socketChannel = null;
+                this.packetReader = new PacketReader(this.mysqlConnection
+                        .getInputStream(), PacketReader.DEFAULT_READ_AHEAD);
+                this.mysqlInput = this.packetReader;
                 this.mysqlOutput = new BufferedOutputStream(this.mysqlConnection
                         .getOutputStream(), 16384);
                 this.mysqlOutput.flush();
@@ -896,7 +1053,9 @@ public class MysqlIO {
             // compress()
             this.deflater = new Deflater();
             this.useCompression = true;
-            this.mysqlInput = new CompressedInputStream(this.mysqlInput);
+            this.packetReader = new PacketReader(new CompressedInputStream(
+                        this.mysqlInput), PacketReader.DEFAULT_READ_AHEAD);
+            this.mysqlInput = this.packetReader;
         }
 
         if (((serverCapabilities & CLIENT_CONNECT_WITH_DB) == 0)
@@ -961,6 +1120,43 @@ public class MysqlIO {
         return null;
     }
 
+    /**
+     * Reads the next row straight into the given row data, without
+     * allocating anything for it. Guarded like nextRow(int).
+     *
+     * @param rows where to put the row
+     * @param columnCount the number of columns in the row
+     *
+     * @return false if there are no more rows
+     *
+     * @throws Exception if a database access error occurs
+     */
+    final boolean nextRow(RowDataCompact rows, int columnCount)
+        throws Exception {
+        Buffer rowPacket = checkErrorPacket();
+        rowPacket.setPosition(rowPacket.getPosition() - 1);
+
+        if (rowPacket.isLastDataPacket()) {
+            return false;
+        }
+
+        byte[] rowBytes = rowPacket.getByteBuffer();
+
+        for (int i = 0; i < columnCount; i++) {
+            long len = rowPacket.readFieldLength();
+
+            if (len == Buffer.NULL_LENGTH) {
+                rows.addValue(null, 0, -1);
+            } else {
+                int valueStart = rowPacket.getPosition();
+                rows.addValue(rowBytes, valueStart, (int) len);
+                rowPacket.setPosition(valueStart + (int) len);
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Log-off of the MySQL server and close the socket.
      *
@@ -1054,12 +1250,6 @@ public class MysqlIO {
                 this.packetSequence = -1;
                 this.sendPacket.clear();
 
-                // Offset different for compression
-                if (this.useCompression) {
-                    this.sendPacket.setPosition(this.sendPacket.getPosition()
-                        + COMP_HEADER_LENGTH);
-                }
-
                 this.sendPacket.writeByte((byte) command);
 
                 if ((command == MysqlDefs.INIT_DB)
@@ -1118,6 +1308,146 @@ public class MysqlIO {
     final ResultSet sqlQuery(String query, int maxRows,
         String characterEncoding, Connection conn, int resultSetType,
         boolean streamResults, String catalog) throws Exception {
+        fillQueryPacket(query, characterEncoding);
+
+        return sqlQueryDirect(this.sendPacket, maxRows, conn, resultSetType,
+            streamResults, catalog);
+    }
+
+    /**
+     * Sends several queries back-to-back and then reads their results in
+     * order, so that a run of independent statements costs about one round
+     * trip instead of one each. No more than PIPELINE_WINDOW bytes of
+     * queries are sent ahead of reading results, so neither end can fill
+     * its socket buffers and stall the other.
+     *
+     * <p>
+     * A query that fails doesn't stop the others, its exception is stored
+     * in errors at the same index. Results are read in full, never
+     * streamed.
+     * </p>
+     *
+     * @param queries the queries to send
+     * @param characterEncoding the encoding to send the queries in
+     * @param resultSetType the type of result sets to build
+     * @param catalog the database name in use
+     * @param allowCompactRows may rows go in RowDataCompact (see
+     *        getResultSet())?
+     * @param errors filled in with the exception each failed query caused
+     *
+     * @return the results, null where a query failed
+     *
+     * @throws Exception if communication with the server fails
+     */
+    final ResultSet[] sqlQueryPipelined(String[] queries,
+        String characterEncoding, int resultSetType, String catalog,
+        boolean allowCompactRows, SQLException[] errors)
+        throws Exception {
+        checkForOutstandingStreamingData();
+
+        if (this.clearStreamBeforeEachQuery) {
+            clearInputStream();
+        }
+
+        ResultSet[] results = new ResultSet[queries.length];
+        int[] sentLengths = new int[queries.length];
+        int nextToSend = 0;
+        int nextToRead = 0;
+        int bytesInFlight = 0;
+
+        try {
+            while (nextToRead < queries.length) {
+                while ((nextToSend < queries.length)
+                        && ((nextToSend == nextToRead)
+                        || (bytesInFlight < PIPELINE_WINDOW))) {
+                    fillQueryPacket(queries[nextToSend], characterEncoding);
+
+                    sentLengths[nextToSend] = this.sendPacket.getPosition();
+                    this.packetSequence = -1;
+                    send(this.sendPacket, sentLengths[nextToSend], false);
+
+                    bytesInFlight += sentLengths[nextToSend];
+                    this.pipelinedResponsesPending++;
+                    nextToSend++;
+                }
+
+                this.mysqlOutput.flush();
+
+                //
+                // Read the oldest response as if its query had just been
+                // sent, so packet sequencing matches sendCommand()
+                //
+                this.packetSequence = 0;
+                this.pipelinedResponsesPending--;
+
+                try {
+                    results[nextToRead] = readPipelinedResult(resultSetType,
+                            catalog, allowCompactRows);
+                } catch (SQLException sqlEx) {
+                    if (SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE.equals(
+                                sqlEx.getSQLState())) {
+                        throw sqlEx;
+                    }
+
+                    errors[nextToRead] = sqlEx;
+                }
+
+                bytesInFlight -= sentLengths[nextToRead];
+                nextToRead++;
+            }
+        } finally {
+            this.pipelinedResponsesPending = 0;
+        }
+
+        return results;
+    }
+
+    /**
+     * Reads the response to one pipelined query.
+     *
+     * @param resultSetType the type of result set to build
+     * @param catalog the database name in use
+     * @param allowCompactRows may rows go in RowDataCompact?
+     *
+     * @return the result set or update count
+     *
+     * @throws Exception if the query failed, or communication failed
+     */
+    private ResultSet readPipelinedResult(int resultSetType, String catalog,
+        boolean allowCompactRows) throws Exception {
+        Buffer resultPacket = checkErrorPacket(MysqlDefs.QUERY);
+
+        resultPacket.setPosition(resultPacket.getPosition() - 1);
+
+        long columnCount = resultPacket.readFieldLength();
+
+        if (columnCount == 0) {
+            return buildResultSetWithUpdates(resultPacket);
+        } else if (columnCount == Buffer.NULL_LENGTH) {
+            //
+            // The server would read the queries we've already sent as the
+            // contents of the file, there's no recovering from that
+            //
+            forceClose();
+
+            throw new SQLException("LOAD DATA LOCAL INFILE can not be pipelined",
+                SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE);
+        }
+
+        return getResultSet(columnCount, MysqlDefs.MAX_ROWS, resultSetType,
+            false, catalog, allowCompactRows);
+    }
+
+    /**
+     * Writes a COM_QUERY packet for the given query into sendPacket.
+     *
+     * @param query the query to send
+     * @param characterEncoding the encoding to send it in, or null
+     *
+     * @throws SQLException if the query can't be encoded
+     */
+    private void fillQueryPacket(String query, String characterEncoding)
+        throws SQLException {
         // We don't know exactly how many bytes we're going to get
         // from the query. Since we're dealing with Unicode, the
         // max is 2, so pad it (2 * query) + space for headers
@@ -1135,23 +1465,27 @@ public class MysqlIO {
             SingleByteCharsetConverter converter = this.connection
                 .getCharsetConverter(characterEncoding);
 
-            if (this.platformDbCharsetMatches) {
-                this.sendPacket.writeStringNoNull(query, characterEncoding,
-                    converter);
-            } else {
-                if (StringUtils.startsWithIgnoreCaseAndWs(query, "LOAD DATA")) {
-                    this.sendPacket.writeBytesNoNull(query.getBytes());
+            try {
+                if (this.platformDbCharsetMatches) {
+                    this.sendPacket.writeStringNoNull(query,
+                        characterEncoding, converter);
                 } else {
-                    this.sendPacket.writeStringNoNull(query, characterEncoding,
-                        converter);
+                    if (StringUtils.startsWithIgnoreCaseAndWs(query,
+                                "LOAD DATA")) {
+                        this.sendPacket.writeBytesNoNull(query.getBytes());
+                    } else {
+                        this.sendPacket.writeStringNoNull(query,
+                            characterEncoding, converter);
+                    }
                 }
+            } catch (UnsupportedEncodingException encEx) {
+                throw new SQLException("Unsupported character encoding '"
+                    + characterEncoding + "'.",
+                    SQLError.SQL_STATE_GENERAL_ERROR);
             }
         } else {
             this.sendPacket.writeStringNoNull(query);
         }
-
-        return sqlQueryDirect(this.sendPacket, maxRows, conn, resultSetType,
-            streamResults, catalog);
     }
 
     /**
@@ -1293,25 +1627,21 @@ public class MysqlIO {
         }
     }
 
-    private final int readFully(InputStream in, byte[] b, int off, int len)
-        throws IOException {
-        if (len < 0) {
-            throw new IndexOutOfBoundsException();
-        }
-
-        int n = 0;
-
-        while (n < len) {
-            int count = in.read(b, off + n, len - n);
-
-            if (count < 0) {
-                throw new EOFException();
-            }
-
-            n += count;
+    /**
+     * Reads the next packet header, closing the connection if the server
+     * has gone away.
+     *
+     * @return the payload length of the packet
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private final int readHeader() throws IOException {
+        try {
+            return this.packetReader.readHeader();
+        } catch (EOFException eofEx) {
+            forceClose();
+            throw eofEx;
         }
-
-        return n;
     }
 
     /**
@@ -1324,25 +1654,16 @@ public class MysqlIO {
      */
     private final Buffer readPacket() throws SQLException {
         try {
-            int packetLength = mysqlInput.read() + (mysqlInput.read() << 8)
-                + (mysqlInput.read() << 16);
-
-            // -1 for all values through above assembly sequence
-            if (packetLength == -65793) {
-                forceClose();
-                throw new IOException("Unexpected end of input stream");
-            }
+            int packetLength = readHeader();
 
             // we don't look at packet sequence in this case
-            //this.mysqlInput.skip(1);
-            this.mysqlInput.read();
-
             // Read data
-            byte[] buffer = new byte[packetLength + 1];
-            readFully(this.mysqlInput, buffer, 0, packetLength);
+            byte[] buffer = this.packetBufferPool.lease(packetLength + 1);
+            this.packetReader.readPayload(buffer, 0, packetLength);
             buffer[packetLength] = 0;
 
             Buffer packet = new Buffer(buffer);
+            packet.setBufLength(packetLength + 1);
 
             return packet;
         } catch (IOException ioEx) {
@@ -1421,6 +1742,37 @@ public class MysqlIO {
         return updateRs;
     }
 
+    /**
+     * Grows the target of a multi-packet read so that another
+     * packetLength bytes fit after the first used bytes. The new array is
+     * sized for one more full packet when this one is full, so long
+     * sequences are copied once per two packets instead of once per
+     * packet.
+     *
+     * @param reuse the packet being reassembled
+     * @param used the number of bytes already reassembled
+     * @param packetLength the length of the packet about to be read
+     */
+    private void ensureReassemblyCapacity(Buffer reuse, int used,
+        int packetLength) {
+        byte[] current = reuse.getByteBuffer();
+
+        if ((used + packetLength) < current.length) {
+            return;
+        }
+
+        int size = used + packetLength + 1;
+
+        if (packetLength == this.maxThreeBytes) {
+            size += this.maxThreeBytes;
+        }
+
+        byte[] grown = this.packetBufferPool.lease(size);
+        System.arraycopy(current, 0, grown, 0, used);
+        reuse.setByteBuffer(grown);
+        this.packetBufferPool.release(current);
+    }
+
     /**
      * Don't hold on to overly-large packets
      */
@@ -1446,16 +1798,9 @@ public class MysqlIO {
         try {
             reuse.setWasMultiPacket(false);
 
-            int packetLength = mysqlInput.read() + (mysqlInput.read() << 8)
-                + (mysqlInput.read() << 16);
+            int packetLength = readHeader();
 
-            // -1 for all values through above assembly sequence
-            if (packetLength == -65793) {
-                forceClose();
-                throw new IOException("Unexpected end of input stream");
-            }
-
-            byte multiPacketSeq = (byte) this.mysqlInput.read();
+            byte multiPacketSeq = this.packetReader.getSequence();
 
             // Set the Buffer to it's original state
             reuse.setPosition(0);
@@ -1468,95 +1813,43 @@ public class MysqlIO {
             // necesarily the actual length of the byte array
             // used as the buffer
             if (reuse.getByteBuffer().length <= packetLength) {
-                reuse.setByteBuffer(new byte[packetLength + 1]);
+                int size = packetLength + 1;
+
+                if (packetLength == this.maxThreeBytes) {
+                    // First of a multi-packet sequence, pre-size for
+                    // (at least) the next one
+                    size += this.maxThreeBytes;
+                }
+
+                this.packetBufferPool.release(reuse.getByteBuffer());
+                reuse.setByteBuffer(this.packetBufferPool.lease(size));
             }
 
             // Set the new length
             reuse.setBufLength(packetLength);
 
             // Read the data from the server
-            readFully(this.mysqlInput, reuse.getByteBuffer(), 0, packetLength);
+            this.packetReader.readPayload(reuse.getByteBuffer(), 0,
+                packetLength);
 
             boolean isMultiPacket = false;
 
             if (packetLength == maxThreeBytes) {
-                reuse.setPosition((int) maxThreeBytes);
-
                 int packetEndPoint = packetLength;
 
                 // it's multi-packet
                 isMultiPacket = true;
-                packetLength = mysqlInput.read() + (mysqlInput.read() << 8)
-                    + (mysqlInput.read() << 16);
-
-                // -1 for all values through above assembly sequence
-                if (packetLength == -65793) {
-                    forceClose();
-                    throw new IOException("Unexpected end of input stream");
-                }
-
-                Buffer multiPacket = new Buffer(packetLength);
-                boolean firstMultiPkt = true;
 
                 while (true) {
-                    if (!firstMultiPkt) {
-                        packetLength = mysqlInput.read()
-                            + (mysqlInput.read() << 8)
-                            + (mysqlInput.read() << 16);
-
-                        // -1 for all values through above assembly sequence
-                        if (packetLength == -65793) {
-                            forceClose();
-                            throw new IOException(
-                                "Unexpected end of input stream");
-                        }
-                    } else {
-                        firstMultiPkt = false;
-                    }
+                    packetLength = readHeader();
 
                     if (!this.useNewLargePackets && (packetLength == 1)) {
                         clearInputStream();
 
                         break;
-                    } else if (packetLength < this.maxThreeBytes) {
-                        byte newPacketSeq = (byte) this.mysqlInput.read();
-
-                        if (newPacketSeq != (multiPacketSeq + 1)) {
-                            throw new IOException(
-                                "Packets received out of order");
-                        }
-
-                        multiPacketSeq = newPacketSeq;
-
-                        // Set the Buffer to it's original state
-                        multiPacket.setPosition(0);
-                        multiPacket.setSendLength(0);
-
-                        // Set the new length
-                        multiPacket.setBufLength(packetLength);
-
-                        // Read the data from the server
-                        byte[] byteBuf = multiPacket.getByteBuffer();
-                        int lengthToWrite = packetLength;
-
-                        int bytesRead = readFully(this.mysqlInput, byteBuf, 0,
-                                packetLength);
-
-                        if (bytesRead != lengthToWrite) {
-                            throw new SQLException(
-                                "Short read from server, expected "
-                                + lengthToWrite + " bytes, received only "
-                                + bytesRead + ".", SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE);
-                        }
-
-                        reuse.writeBytesNoNull(byteBuf, 0, lengthToWrite);
-
-                        packetEndPoint += lengthToWrite;
-
-                        break; // end of multipacket sequence
                     }
 
-                    byte newPacketSeq = (byte) this.mysqlInput.read();
+                    byte newPacketSeq = this.packetReader.getSequence();
 
                     if (newPacketSeq != (multiPacketSeq + 1)) {
                         throw new IOException("Packets received out of order");
@@ -1564,33 +1857,23 @@ public class MysqlIO {
 
                     multiPacketSeq = newPacketSeq;
 
-                    // Set the Buffer to it's original state
-                    multiPacket.setPosition(0);
-                    multiPacket.setSendLength(0);
+                    //
+                    // Read the continuation straight into place, rather
+                    // than staging it in another packet and copying
+                    //
+                    ensureReassemblyCapacity(reuse, packetEndPoint,
+                        packetLength);
+                    this.packetReader.readPayload(reuse.getByteBuffer(),
+                        packetEndPoint, packetLength);
 
-                    // Set the new length
-                    multiPacket.setBufLength(packetLength);
+                    packetEndPoint += packetLength;
 
-                    // Read the data from the server
-                    byte[] byteBuf = multiPacket.getByteBuffer();
-                    int lengthToWrite = packetLength;
-
-                    int bytesRead = readFully(this.mysqlInput, byteBuf, 0,
-                            packetLength);
-
-                    if (bytesRead != lengthToWrite) {
-                        throw new SQLException(
-                            "Short read from server, expected " + lengthToWrite
-                            + " bytes, received only " + bytesRead + ".",
-                            SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE);
+                    if (packetLength < this.maxThreeBytes) {
+                        break; // end of multipacket sequence
                     }
-
-                    reuse.writeBytesNoNull(byteBuf, 0, lengthToWrite);
-
-                    packetEndPoint += lengthToWrite;
                 }
 
-                //reuse.writeByte((byte) 0);
+                reuse.setBufLength(packetEndPoint);
                 reuse.setPosition(0);
                 reuse.setWasMultiPacket(true);
             }
@@ -1635,6 +1918,11 @@ public class MysqlIO {
     }
 
     private final void send(Buffer packet, int packetLen)
+        throws SQLException {
+        send(packet, packetLen, true);
+    }
+
+    private final void send(Buffer packet, int packetLen, boolean flush)
         throws SQLException {
         try {
             if (packetLen > this.maxAllowedPacket) {
@@ -1646,22 +1934,15 @@ public class MysqlIO {
             } else {
                 this.packetSequence++;
 
-                Buffer packetToSend = packet;
+                packet.setPosition(0);
+                packet.writeLongInt(packetLen - HEADER_LENGTH);
+                packet.writeByte(this.packetSequence);
 
-                packetToSend.setPosition(0);
+                writePacket(packet, packetLen);
 
-                if (this.useCompression) {
-                    packetToSend = compressPacket(packet, 0, packetLen,
-                            HEADER_LENGTH);
-                    packetLen = packetToSend.getPosition();
-                } else {
-                    packetToSend.writeLongInt(packetLen - HEADER_LENGTH);
-                    packetToSend.writeByte(this.packetSequence);
+                if (flush) {
+                    this.mysqlOutput.flush();
                 }
-
-                this.mysqlOutput.write(packetToSend.getByteBuffer(), 0,
-                    packetLen);
-                this.mysqlOutput.flush();
             }
 
             // 
@@ -1907,6 +2188,12 @@ public class MysqlIO {
      */
     private final void sendSplitPackets(Buffer packet)
         throws SQLException {
+        if ((this.socketChannel != null) && !this.useCompression) {
+            sendSplitPacketsGathered(packet);
+
+            return;
+        }
+
         try {
             //
             // Big packets are handled by splitting them in packets of MAX_THREE_BYTES
@@ -1949,8 +2236,7 @@ public class MysqlIO {
                 headerPacket.writeByte(this.packetSequence);
                 System.arraycopy(origPacketBytes, originalPacketPos,
                     headerPacketBytes, 4, splitSize);
-                this.mysqlOutput.write(headerPacketBytes, 0,
-                    splitSize + HEADER_LENGTH);
+                writePacket(headerPacket, splitSize + HEADER_LENGTH);
                 this.mysqlOutput.flush();
 
                 if (Driver.DEBUG) {
@@ -1981,7 +2267,7 @@ public class MysqlIO {
                     headerPacketBytes, 4, len - HEADER_LENGTH);
             }
 
-            this.mysqlOutput.write(headerPacket.getByteBuffer(), 0, len);
+            writePacket(headerPacket, len);
             this.mysqlOutput.flush();
 
             if (Driver.DEBUG) {
@@ -2008,6 +2294,76 @@ public class MysqlIO {
         }
     }
 
+    /**
+     * Sends a large packet to the server as a series of smaller packets,
+     * writing the headers and slices of the packet's own byte array in one
+     * gathering write, rather than copying each slice into a split buffer
+     * first.
+     *
+     * @param packet the packet to send
+     *
+     * @throws SQLException if an I/O error occurs
+     */
+    private final void sendSplitPacketsGathered(Buffer packet)
+        throws SQLException {
+        try {
+            int remaining = packet.getPosition() - HEADER_LENGTH;
+            int splitSize = (int) maxThreeBytes;
+            int packetCount = (remaining / splitSize) + 1;
+            byte[] origPacketBytes = packet.getByteBuffer();
+            byte[] headers = new byte[packetCount * HEADER_LENGTH];
+            ByteBuffer[] slices = new ByteBuffer[packetCount * 2];
+            int originalPacketPos = HEADER_LENGTH;
+            long toWrite = 0;
+
+            if (Driver.DEBUG) {
+                System.out.println("\n\nGathering split packets for packet of "
+                    + packet.getPosition() + " bytes:\n");
+            }
+
+            //
+            // Packets of MAX_THREE_BYTES, followed by one shorter (possibly
+            // empty) packet that ends the sequence
+            //
+            for (int i = 0; i < packetCount; i++) {
+                int chunk = Math.min(remaining, splitSize);
+                int h = i * HEADER_LENGTH;
+                this.packetSequence++;
+                headers[h] = (byte) (chunk & 0xff);
+                headers[h + 1] = (byte) (chunk >>> 8);
+                headers[h + 2] = (byte) (chunk >>> 16);
+                headers[h + 3] = this.packetSequence;
+
+                slices[i * 2] = ByteBuffer.wrap(headers, h, HEADER_LENGTH);
+                slices[(i * 2) + 1] = ByteBuffer.wrap(origPacketBytes,
+                        originalPacketPos, chunk);
+                toWrite += (HEADER_LENGTH + chunk);
+
+                originalPacketPos += chunk;
+                remaining -= chunk;
+            }
+
+            // Anything already buffered has to go out first
+            this.mysqlOutput.flush();
+
+            while (toWrite > 0) {
+                toWrite -= this.socketChannel.write(slices);
+            }
+        } catch (IOException ioEx) {
+            StringBuffer message = new StringBuffer(SQLError.get(SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE));
+            message.append(": ");
+            message.append(ioEx.getClass().getName());
+            message.append(", underlying cause: ");
+            message.append(ioEx.getMessage());
+
+            if (!this.connection.useParanoidErrorMessages()) {
+                message.append(Util.stackTraceToString(ioEx));
+            }
+
+            throw new java.sql.SQLException(message.toString(), SQLError.SQL_STATE_COMMUNICATION_LINK_FAILURE, 0);
+        }
+    }
+
     private int alignPacketSize(int a, int l) {
         return ((((a) + (l)) - 1) & ~((l) - 1));
     }
@@ -2020,6 +2376,11 @@ public class MysqlIO {
                     + " Only one streaming result set may be open and in use per-connection. Ensure that you have called .close() on "
                     + " any active result sets before attempting more queries.");
             } else {
+                // Stop any read-ahead before we touch the stream ourselves
+                if (this.streamingData instanceof RowDataDynamic) {
+                    ((RowDataDynamic) this.streamingData).stopPrefetching();
+                }
+
                 // Close the result set
                 this.streamingData.getOwner().realClose(false);
 
@@ -2030,6 +2391,11 @@ public class MysqlIO {
     }
 
     private void clearInputStream() throws SQLException {
+        if (this.pipelinedResponsesPending > 0) {
+            // Those bytes are answers to queries we've already sent
+            return;
+        }
+
         try {
             int len = this.mysqlInput.available();
 
@@ -2043,53 +2409,113 @@ public class MysqlIO {
         }
     }
 
-    private Buffer compressPacket(Buffer packet, int offset, int packetLen,
-        int headerLength) throws SQLException {
-        packet.writeLongInt(packetLen - headerLength);
-        packet.writeByte((byte) 0); // wrapped packet has 0 packet seq.
-
-        int lengthToWrite = 0;
-        int compressedLength = 0;
-        byte[] bytesToCompress = packet.getByteBuffer();
-        byte[] compressedBytes = null;
-        int offsetWrite = 0;
-
-        if (true /*packetLen < MIN_COMPRESS_LEN*/) {
-            lengthToWrite = packetLen;
-            compressedBytes = packet.getByteBuffer();
-            compressedLength = 0;
-            offsetWrite = offset;
-        } else {
-            compressedBytes = new byte[bytesToCompress.length * 2];
+    /**
+     * Wraps a packet, header included, in the compressed protocol's
+     * header. Packets of MIN_COMPRESS_LEN bytes or more are deflated,
+     * unless that doesn't make them smaller, in which case they are sent
+     * as-is with an uncompressed length of 0. The Deflater and the
+     * returned packet are re-used from call to call.
+     *
+     * @param packet the packet to send
+     * @param offset where the packet's header starts
+     * @param packetLen the length of the packet, header included
+     *
+     * @return the packet to write, ready to send up to its position
+     *
+     * @throws SQLException DOCUMENT ME!
+     */
+    private Buffer compressPacket(Buffer packet, int offset, int packetLen)
+        throws SQLException {
+        int headerLength = HEADER_LENGTH + COMP_HEADER_LENGTH;
+
+        if ((this.compressedPacket == null)
+                || (this.compressedPacket.getByteBuffer().length < (packetLen
+                + headerLength))) {
+            this.compressedPacket = new Buffer(packetLen + headerLength);
+        }
+
+        byte[] compressedBytes = this.compressedPacket.getByteBuffer();
+        int compLen = 0;
 
+        if (packetLen >= MIN_COMPRESS_LEN) {
             this.deflater.reset();
-            this.deflater.setInput(bytesToCompress, offset, packetLen);
+            this.deflater.setInput(packet.getByteBuffer(), offset, packetLen);
             this.deflater.finish();
 
-            int compLen = this.deflater.deflate(compressedBytes);
+            //
+            // Only leave room for output smaller than the input, if it
+            // doesn't fit it's not worth sending compressed
+            //
+            compLen = this.deflater.deflate(compressedBytes, headerLength,
+                    packetLen - 1);
 
-            if (compLen > packetLen) {
-                lengthToWrite = packetLen;
-                compressedBytes = packet.getByteBuffer();
-                compressedLength = 0;
-                offsetWrite = offset;
-            } else {
-                lengthToWrite = compLen;
-                headerLength += COMP_HEADER_LENGTH;
-                compressedLength = packetLen;
+            if (!this.deflater.finished()) {
+                compLen = 0;
             }
         }
 
-        Buffer compressedPacket = new Buffer(packetLen + headerLength);
+        this.compressedPacket.setPosition(0);
 
-        compressedPacket.setPosition(0);
-        compressedPacket.writeLongInt(lengthToWrite);
-        compressedPacket.writeByte(this.packetSequence);
-        compressedPacket.writeLongInt(compressedLength);
-        compressedPacket.writeBytesNoNull(compressedBytes, offsetWrite,
-            lengthToWrite);
+        if (compLen > 0) {
+            this.compressedPacket.writeLongInt(compLen);
+            this.compressedPacket.writeByte(this.packetSequence);
+            this.compressedPacket.writeLongInt(packetLen);
+            this.compressedPacket.setPosition(headerLength + compLen);
+        } else {
+            this.compressedPacket.writeLongInt(packetLen);
+            this.compressedPacket.writeByte(this.packetSequence);
+            this.compressedPacket.writeLongInt(0);
+            this.compressedPacket.writeBytesNoNull(packet.getByteBuffer(),
+                offset, packetLen);
+        }
 
-        return compressedPacket;
+        return this.compressedPacket;
+    }
+
+    /**
+     * Writes a packet, compressing it first if compression is in use.
+     *
+     * <p>
+     * A compressed packet's uncompressed length is three bytes too, so a
+     * split packet of MAX_THREE_BYTES plus its header doesn't fit in one.
+     * Packets longer than MAX_COMPRESSED_FRAME are sent as several
+     * compressed packets, each taking the next sequence number (the server
+     * checks the compressed packets' sequence, not the inner ones').
+     * </p>
+     *
+     * @param packet the packet to write
+     * @param packetLen the length of the packet, header included
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws SQLException DOCUMENT ME!
+     */
+    private void writePacket(Buffer packet, int packetLen)
+        throws IOException, SQLException {
+        if (this.useCompression) {
+            int offset = 0;
+
+            do {
+                int frameLen = Math.min(packetLen - offset,
+                        MAX_COMPRESSED_FRAME);
+
+                if (offset > 0) {
+                    this.packetSequence++;
+                }
+
+                Buffer packetToSend = compressPacket(packet, offset, frameLen);
+
+                this.mysqlOutput.write(packetToSend.getByteBuffer(), 0,
+                    packetToSend.getPosition());
+                offset += frameLen;
+            } while (offset < packetLen);
+
+            // Don't hold on to large packets
+            if (this.compressedPacket.getByteBuffer().length > 1048576) {
+                this.compressedPacket = null;
+            }
+        } else {
+            this.mysqlOutput.write(packet.getByteBuffer(), 0, packetLen);
+        }
     }
 
     private SocketFactory createSocketFactory() throws SQLException {
@@ -2184,7 +2610,8 @@ public class MysqlIO {
 
             b.setPosition(0);
 
-            byte[] replyAsBytes = b.getByteBuffer();
+            // readPacket() leases a pooled array, only look at the packet
+            byte[] replyAsBytes = b.getBytes(b.getBufLength());
 
             if ((replyAsBytes.length == 25) && (replyAsBytes[0] != 0)) {
                 // Old passwords will have '*' at the first byte of hash */
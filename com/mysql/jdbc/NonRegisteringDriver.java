@@ -285,6 +285,28 @@ public class NonRegisteringDriver implements java.sql.Driver {
             + "and any oustanding data still streaming from the server to be discarded if another query is executed "
             + "before all the data has been read from the server.";
 
+        DriverPropertyInfo streamingFetchSize = new DriverPropertyInfo("streamingFetchSize",
+                info.getProperty("streamingFetchSize", "1"));
+        streamingFetchSize.required = false;
+        streamingFetchSize.description = "How many rows should a 'streaming' ResultSet read from the server at a time? "
+            + "ResultSet.setFetchSize() overrides this for a single result set. (default is '1')";
+
+        DriverPropertyInfo prefetchStreamingRows = new DriverPropertyInfo("prefetchStreamingRows",
+                info.getProperty("prefetchStreamingRows", "false"));
+        prefetchStreamingRows.required = false;
+        prefetchStreamingRows.choices = new String[] { "true", "false" };
+        prefetchStreamingRows.description = "Should a 'streaming' ResultSet read its next 'streamingFetchSize' rows on a thread "
+            + "of its own while the current rows are being used? At most two batches of rows are held at once. "
+            + "(true/false, defaults to false)";
+
+        DriverPropertyInfo useCompactRowStorage = new DriverPropertyInfo("useCompactRowStorage",
+                info.getProperty("useCompactRowStorage", "false"));
+        useCompactRowStorage.required = false;
+        useCompactRowStorage.choices = new String[] { "true", "false" };
+        useCompactRowStorage.description = "Should read-only ResultSets keep their data in a few large byte arrays, "
+            + "rather than one per column value? Uses far less memory for large results, at the cost of copying "
+            + "each row as it's visited. (true/false, defaults to false)";
+
         DriverPropertyInfo reconnectAtTxEnd = new DriverPropertyInfo("reconnectAtTxEnd",
                 info.getProperty("reconnectAtTxEnd", "false"));
         reconnectAtTxEnd.required = false;
@@ -326,7 +348,8 @@ public class NonRegisteringDriver implements java.sql.Driver {
             useStreamLengthsInPrepStmts, continueBatchOnError,
             allowLoadLocalInfile, strictUpdates, ignoreNonTxTables,
             reconnectAtTxEnd, alwaysClearStream, cachePrepStmts,
-            prepStmtCacheSize, prepStmtCacheSqlLimit
+            prepStmtCacheSize, prepStmtCacheSqlLimit, streamingFetchSize,
+            prefetchStreamingRows, useCompactRowStorage
         };
 
         return dpi;
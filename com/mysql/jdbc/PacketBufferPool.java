@@ -0,0 +1,147 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+/**
+ * Per-connection pool of packet byte arrays, kept in power-of-two size
+ * classes. Arrays larger than the biggest class are allocated on demand
+ * and never retained, so that infrequent large packets don't pin memory
+ * (the same policy as reclaimLargeReusablePacket()).
+ *
+ * <p>
+ * NB: Guarded by execSQL, like the rest of MysqlIO's packet handling. If
+ * the driver changes architecture, this will need to be synchronized in
+ * some other way.
+ * </p>
+ */
+class PacketBufferPool {
+    /** Smallest size class is 1 << MIN_SHIFT bytes */
+    private static final int MIN_SHIFT = 8;
+
+    /** Largest pooled size class is 1 << MAX_SHIFT bytes (1M) */
+    private static final int MAX_SHIFT = 20;
+
+    /** How many free arrays each size class holds on to */
+    private static final int MAX_FREE_PER_CLASS = 8;
+
+    /** Free arrays, indexed by size class then stack slot */
+    private byte[][][] free = new byte[(MAX_SHIFT - MIN_SHIFT) + 1][MAX_FREE_PER_CLASS][];
+
+    /** Number of free arrays in each size class */
+    private int[] freeCount = new int[(MAX_SHIFT - MIN_SHIFT) + 1];
+
+    /** Leases served from a free list */
+    private long hits = 0;
+
+    /** Leases that had to allocate */
+    private long misses = 0;
+
+    /**
+     * Returns an array of at least minSize bytes, from the pool if one is
+     * free.
+     *
+     * @param minSize the smallest acceptable length
+     *
+     * @return a byte array, contents undefined
+     */
+    byte[] lease(int minSize) {
+        int sizeClass = sizeClassFor(minSize);
+
+        if (sizeClass < 0) {
+            this.misses++;
+
+            return new byte[minSize];
+        }
+
+        if (this.freeCount[sizeClass] > 0) {
+            this.hits++;
+
+            int slot = --this.freeCount[sizeClass];
+            byte[] b = this.free[sizeClass][slot];
+            this.free[sizeClass][slot] = null;
+
+            return b;
+        }
+
+        this.misses++;
+
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Returns an array to the pool. Arrays that don't match a size class,
+     * or whose class is already full, are left for the garbage collector.
+     *
+     * @param b the array to return, may be null
+     */
+    void release(byte[] b) {
+        if (b == null) {
+            return;
+        }
+
+        int sizeClass = sizeClassFor(b.length);
+
+        if ((sizeClass < 0) || (b.length != (1 << (sizeClass + MIN_SHIFT)))) {
+            return;
+        }
+
+        if (this.freeCount[sizeClass] < MAX_FREE_PER_CLASS) {
+            this.free[sizeClass][this.freeCount[sizeClass]++] = b;
+        }
+    }
+
+    /**
+     * Returns the number of leases served without allocating.
+     *
+     * @return the pool hit count
+     */
+    long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of leases that allocated a new array.
+     *
+     * @return the pool miss count
+     */
+    long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Maps a length to the smallest size class that holds it.
+     *
+     * @param size the length needed
+     *
+     * @return the size class, or -1 if larger than any class
+     */
+    private static int sizeClassFor(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+
+        if (shift > MAX_SHIFT) {
+            return -1;
+        }
+
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Random;
+
+
+/**
+ * Times leasing packet arrays from a PacketBufferPool against allocating a
+ * new byte[packetLength + 1] per packet, as readPacket() did before the
+ * pool, and prints the time, heap allocated per packet and the pool's hit
+ * and miss counts.
+ *
+ * <p>
+ * Each packet is filled as if read from the wire and handed back straight
+ * away, the way getResultSet() treats column definitions. Packet sizes are
+ * mostly small, with a few in the 1K-64K range and one in a thousand
+ * bigger than the largest size class (1M), which the pool never keeps.
+ * </p>
+ *
+ * <pre>
+ *     java com.mysql.jdbc.PacketBufferPoolBenchmark [packets]
+ * </pre>
+ */
+public class PacketBufferPoolBenchmark {
+    /** Number of distinct packet sizes, cycled through */
+    private static final int SIZES = 4096;
+
+    /** Keeps the JIT from throwing the arrays away */
+    private static long sink = 0;
+
+    /**
+     * Entry point for program when called from the command line.
+     *
+     * @param args command-line args. Arg 1 is the number of packets, 1M if
+     *        not given.
+     *
+     * @throws Exception if any errors occur
+     */
+    public static void main(String[] args) throws Exception {
+        int packets = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int[] sizes = packetSizes();
+        byte[] wire = new byte[2 * 1024 * 1024];
+
+        new Random(1).nextBytes(wire);
+
+        for (int warm = 0; warm < 5; warm++) {
+            pooled(new PacketBufferPool(), sizes, wire, packets / 10);
+            allocated(sizes, wire, packets / 10);
+        }
+
+        PacketBufferPool pool = new PacketBufferPool();
+        long a0 = allocatedBytes();
+        long t0 = System.nanoTime();
+
+        pooled(pool, sizes, wire, packets);
+
+        long ns = System.nanoTime() - t0;
+        long bytes = allocatedBytes() - a0;
+
+        System.out.println("pool     packets=" + packets + " ns/packet="
+            + (ns / packets) + " bytes/packet=" + (bytes / packets)
+            + " hits=" + pool.getHits() + " misses=" + pool.getMisses());
+
+        a0 = allocatedBytes();
+        t0 = System.nanoTime();
+
+        allocated(sizes, wire, packets);
+
+        ns = System.nanoTime() - t0;
+        bytes = allocatedBytes() - a0;
+
+        System.out.println("new byte packets=" + packets + " ns/packet="
+            + (ns / packets) + " bytes/packet=" + (bytes / packets));
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void pooled(PacketBufferPool pool, int[] sizes,
+        byte[] wire, int packets) {
+        for (int i = 0; i < packets; i++) {
+            int packetLength = sizes[i % SIZES];
+            byte[] buffer = pool.lease(packetLength + 1);
+
+            System.arraycopy(wire, 0, buffer, 0, packetLength);
+            buffer[packetLength] = 0;
+            sink += buffer[packetLength >> 1];
+            pool.release(buffer);
+        }
+    }
+
+    private static void allocated(int[] sizes, byte[] wire, int packets) {
+        for (int i = 0; i < packets; i++) {
+            int packetLength = sizes[i % SIZES];
+            byte[] buffer = new byte[packetLength + 1];
+
+            System.arraycopy(wire, 0, buffer, 0, packetLength);
+            buffer[packetLength] = 0;
+            sink += buffer[packetLength >> 1];
+        }
+    }
+
+    /**
+     * 90% 20-200 bytes, 9.9% 1K-64K, 0.1% 1M-2M.
+     */
+    private static int[] packetSizes() {
+        Random random = new Random(2);
+        int[] sizes = new int[SIZES];
+
+        for (int i = 0; i < SIZES; i++) {
+            int p = random.nextInt(1000);
+
+            if (p == 0) {
+                sizes[i] = (1024 * 1024) + random.nextInt(1024 * 1024 - 1);
+            } else if (p < 100) {
+                sizes[i] = 1024 + random.nextInt(63 * 1024);
+            } else {
+                sizes[i] = 20 + random.nextInt(180);
+            }
+        }
+
+        return sizes;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread()
+                                                          .getId());
+    }
+}
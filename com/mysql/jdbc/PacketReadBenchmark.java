@@ -0,0 +1,238 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.lang.management.ManagementFactory;
+
+
+/**
+ * Times framing a stream of small row packets with PacketReader against
+ * the path MysqlIO used before it (four single-byte read()s on a 16K
+ * BufferedInputStream for the header, then readFully() into a new array),
+ * and prints the time and heap allocated per row for each.
+ *
+ * <p>
+ * Both paths allocate the same payload array per row, so the difference is
+ * the framing alone; the pool that replaced those arrays is timed by
+ * PacketBufferPoolBenchmark. Allocation is read from HotSpot's per-thread
+ * counter (com.sun.management).
+ * </p>
+ *
+ * <pre>
+ *     java com.mysql.jdbc.PacketReadBenchmark [rows]
+ * </pre>
+ */
+public class PacketReadBenchmark {
+    /** Number of distinct packets in the block that gets repeated */
+    private static final int BLOCK_ROWS = 1000;
+
+    /** Keeps the JIT from throwing the reads away */
+    private static long sink = 0;
+
+    /**
+     * Entry point for program when called from the command line.
+     *
+     * @param args command-line args. Arg 1 is the number of rows, 1M if
+     *        not given.
+     *
+     * @throws Exception if any errors occur
+     */
+    public static void main(String[] args) throws Exception {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        byte[] block = rowPackets();
+        int rounds = Math.max(1, rows / BLOCK_ROWS);
+
+        for (int warm = 0; warm < 5; warm++) {
+            packetReader(block, rounds / 10);
+            singleByteHeaders(block, rounds / 10);
+        }
+
+        report("PacketReader       ", block, rounds, true);
+        report("single-byte headers", block, rounds, false);
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void report(String name, byte[] block, int rounds,
+        boolean packetReader) throws IOException {
+        long a0 = allocated();
+        long t0 = System.nanoTime();
+
+        if (packetReader) {
+            packetReader(block, rounds);
+        } else {
+            singleByteHeaders(block, rounds);
+        }
+
+        long ns = System.nanoTime() - t0;
+        long bytes = allocated() - a0;
+        long n = (long) rounds * BLOCK_ROWS;
+
+        System.out.println(name + " rows=" + n + " ns/row=" + (ns / n)
+            + " bytes/row=" + (bytes / n));
+    }
+
+    private static void packetReader(byte[] block, int rounds)
+        throws IOException {
+        PacketReader reader = new PacketReader(new RepeatingInputStream(
+                    block, rounds), PacketReader.DEFAULT_READ_AHEAD);
+
+        for (long i = (long) rounds * BLOCK_ROWS; i > 0; i--) {
+            int packetLength = reader.readHeader();
+            byte[] buffer = new byte[packetLength + 1];
+
+            reader.readPayload(buffer, 0, packetLength);
+            sink += buffer[0];
+        }
+    }
+
+    /**
+     * What MysqlIO.readPacket() did before PacketReader.
+     */
+    private static void singleByteHeaders(byte[] block, int rounds)
+        throws IOException {
+        InputStream in = new BufferedInputStream(new RepeatingInputStream(
+                    block, rounds), 16384);
+
+        for (long i = (long) rounds * BLOCK_ROWS; i > 0; i--) {
+            int packetLength = in.read() + (in.read() << 8)
+                + (in.read() << 16);
+
+            if (packetLength == -65793) {
+                throw new EOFException();
+            }
+
+            in.read();
+
+            byte[] buffer = new byte[packetLength + 1];
+            int n = 0;
+
+            while (n < packetLength) {
+                int count = in.read(buffer, n, packetLength - n);
+
+                if (count < 0) {
+                    throw new EOFException();
+                }
+
+                n += count;
+            }
+
+            sink += buffer[0];
+        }
+    }
+
+    /**
+     * Builds BLOCK_ROWS row packets of ten length-coded columns, between
+     * roughly 40 and 120 bytes each, like a typical narrow result.
+     */
+    private static byte[] rowPackets() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream row = new ByteArrayOutputStream();
+
+        for (int r = 0; r < BLOCK_ROWS; r++) {
+            row.reset();
+
+            for (int c = 0; c < 10; c++) {
+                int len = 3 + ((r * 7 + c * 13) % 9);
+
+                row.write(len);
+
+                for (int i = 0; i < len; i++) {
+                    row.write('0' + ((r + i) % 10));
+                }
+            }
+
+            int length = row.size();
+
+            out.write(length & 0xff);
+            out.write((length >>> 8) & 0xff);
+            out.write((length >>> 16) & 0xff);
+            out.write(r & 0xff);
+
+            byte[] payload = row.toByteArray();
+
+            out.write(payload, 0, payload.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread()
+                                                          .getId());
+    }
+
+    /**
+     * The same block of packets over and over, without allocating, handing
+     * out at most what's left of the block per read like a socket would.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] block;
+        private int left;
+        private int pos = 0;
+
+        RepeatingInputStream(byte[] block, int rounds) {
+            this.block = block;
+            this.left = rounds;
+        }
+
+        public int read() throws IOException {
+            if (this.left == 0) {
+                return -1;
+            }
+
+            int b = this.block[this.pos] & 0xff;
+
+            advance(1);
+
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (this.left == 0) {
+                return -1;
+            }
+
+            int n = Math.min(len, this.block.length - this.pos);
+
+            System.arraycopy(this.block, this.pos, b, off, n);
+            advance(n);
+
+            return n;
+        }
+
+        private void advance(int n) {
+            this.pos += n;
+
+            if (this.pos == this.block.length) {
+                this.pos = 0;
+                this.left--;
+            }
+        }
+    }
+}
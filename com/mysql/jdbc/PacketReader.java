@@ -0,0 +1,310 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Frames MySQL protocol packets out of a large read-ahead buffer. The
+ * underlying stream is read in bulk, packet headers are decoded with a
+ * single little-endian int read instead of four single-byte reads, and
+ * payloads are copied straight out of the read-ahead into their target.
+ * Payloads larger than what is buffered are read directly from the stream
+ * into the target once the read-ahead has been drained.
+ *
+ * <p>
+ * When the connection has a channel, the reader reads the channel straight
+ * into a direct read-ahead buffer instead of going through a stream.
+ * </p>
+ *
+ * <p>
+ * The reader is also an InputStream, so it can sit underneath
+ * CompressedInputStream (or be skipped by clearInputStream()) without
+ * losing bytes that have already been read ahead.
+ * </p>
+ */
+class PacketReader extends InputStream {
+    /** Default size of the read-ahead buffer */
+    static final int DEFAULT_READ_AHEAD = 64 * 1024;
+
+    /** The stream we are framing packets from, if not a channel */
+    private InputStream in;
+
+    /** The channel we are framing packets from, if not a stream */
+    private ReadableByteChannel channel;
+
+    /**
+     * Bytes read ahead from the stream, position is the read cursor, limit
+     * is the end of valid data.
+     */
+    private ByteBuffer readAhead;
+
+
+    /** Sequence number from the last header read */
+    private byte sequence = 0;
+
+    /**
+     * Creates a new PacketReader over the given stream.
+     *
+     * @param in the stream to read packets from
+     * @param readAheadSize size of the read-ahead buffer in bytes
+     */
+    PacketReader(InputStream in, int readAheadSize) {
+        this.in = in;
+        this.readAhead = ByteBuffer.allocate(Math.max(readAheadSize,
+                    MysqlIO.HEADER_LENGTH));
+        this.readAhead.order(ByteOrder.LITTLE_ENDIAN);
+        this.readAhead.limit(0);
+    }
+
+    /**
+     * Creates a new PacketReader over the given channel, reading ahead
+     * into a direct buffer. The channel must be in blocking mode.
+     *
+     * @param channel the channel to read packets from
+     * @param readAheadSize size of the read-ahead buffer in bytes
+     */
+    PacketReader(ReadableByteChannel channel, int readAheadSize) {
+        this.channel = channel;
+        this.readAhead = ByteBuffer.allocateDirect(Math.max(readAheadSize,
+                    MysqlIO.HEADER_LENGTH));
+        this.readAhead.order(ByteOrder.LITTLE_ENDIAN);
+        this.readAhead.limit(0);
+    }
+
+    /**
+     * Returns the sequence number of the last packet header read.
+     *
+     * @return the packet sequence number
+     */
+    byte getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Reads the next packet header.
+     *
+     * @return the payload length of the packet
+     *
+     * @throws EOFException if the stream ends
+     * @throws IOException if an I/O error occurs
+     */
+    int readHeader() throws IOException {
+        if (this.readAhead.remaining() < MysqlIO.HEADER_LENGTH) {
+            if (!fill(MysqlIO.HEADER_LENGTH)) {
+                throw new EOFException("Unexpected end of input stream");
+            }
+        }
+
+        int header = this.readAhead.getInt();
+
+        this.sequence = (byte) (header >>> 24);
+
+        return header & 0xffffff;
+    }
+
+    /**
+     * Reads exactly len bytes of packet payload into b.
+     *
+     * @param b the destination
+     * @param off offset in b
+     * @param len number of bytes to read
+     *
+     * @return the number of bytes read, always len
+     *
+     * @throws IOException if the stream ends before len bytes
+     */
+    int readPayload(byte[] b, int off, int len) throws IOException {
+        if (len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int buffered = Math.min(this.readAhead.remaining(), len);
+
+        this.readAhead.get(b, off, buffered);
+
+        int n = buffered;
+
+        if ((len - n) >= this.readAhead.capacity()) {
+            // Too big to be worth staging, go straight to the target
+            ByteBuffer target = ByteBuffer.wrap(b, off + n, len - n);
+
+            while (target.hasRemaining()) {
+                if (readFromSource(target) < 0) {
+                    throw new EOFException();
+                }
+            }
+
+            n = len;
+        } else if (n < len) {
+            if (!fill(len - n)) {
+                throw new EOFException();
+            }
+
+            this.readAhead.get(b, off + n, len - n);
+            n = len;
+        }
+
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        if (this.channel != null) {
+            // Channels can't tell, only count what we've read ahead
+            return this.readAhead.remaining();
+        }
+
+        return this.readAhead.remaining() + this.in.available();
+    }
+
+    /**
+     * @see java.io.InputStream#close()
+     */
+    public void close() throws IOException {
+        this.readAhead.limit(0);
+
+        if (this.channel != null) {
+            this.channel.close();
+        } else {
+            this.in.close();
+        }
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    public int read() throws IOException {
+        if (!this.readAhead.hasRemaining() && !fill(1)) {
+            return -1;
+        }
+
+        return this.readAhead.get() & 0xff;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return 0;
+        }
+
+        if (!this.readAhead.hasRemaining()) {
+            if (len >= this.readAhead.capacity()) {
+                return readFromSource(ByteBuffer.wrap(b, off, len));
+            }
+
+            if (!fill(1)) {
+                return -1;
+            }
+        }
+
+        int count = Math.min(this.readAhead.remaining(), len);
+
+        this.readAhead.get(b, off, count);
+
+        return count;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        int buffered = this.readAhead.remaining();
+
+        if (buffered > 0) {
+            int count = (int) Math.min(buffered, n);
+
+            this.readAhead.position(this.readAhead.position() + count);
+
+            return count;
+        }
+
+        if (this.channel != null) {
+            return 0;
+        }
+
+        return this.in.skip(n);
+    }
+
+    /**
+     * Ensures at least needed bytes are buffered, reading as much as the
+     * stream will give without blocking beyond that.
+     *
+     * @param needed the number of bytes that must be buffered
+     *
+     * @return false if the stream ended first
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean fill(int needed) throws IOException {
+        this.readAhead.compact();
+
+        try {
+            while (this.readAhead.position() < needed) {
+                if (readFromSource(this.readAhead) < 0) {
+                    return false;
+                }
+            }
+        } finally {
+            this.readAhead.flip();
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads from the channel or stream into dst, advancing its position.
+     *
+     * @param dst the buffer to read into, array-backed unless reading
+     *        from a channel
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private int readFromSource(ByteBuffer dst) throws IOException {
+        if (this.channel != null) {
+            return this.channel.read(dst);
+        }
+
+        int count = this.in.read(dst.array(),
+                dst.arrayOffset() + dst.position(), dst.remaining());
+
+        if (count > 0) {
+            dst.position(dst.position() + count);
+        }
+
+        return count;
+    }
+}
@@ -583,7 +583,7 @@ public class ResultSet implements java.sql.ResultSet {
             return null;
         }
 
-        return new Blob(thisRow[columnIndex - 1]);
+        return new Blob(getColumnValue(columnIndex - 1));
     }
 
     /**
@@ -756,7 +756,7 @@ public class ResultSet implements java.sql.ResultSet {
         if (wasNullFlag) {
             return null;
         } else {
-            return thisRow[columnIndex - 1];
+            return getColumnValue(columnIndex - 1);
         }
     }
 
@@ -1078,7 +1078,7 @@ public class ResultSet implements java.sql.ResultSet {
             return getDoubleInternal(columnIndex);
         } catch (NumberFormatException E) {
             throw new java.sql.SQLException("Bad format for number '"
-                + new String(thisRow[columnIndex - 1]) + "' in column "
+                + new String(getColumnValue(columnIndex - 1)) + "' in column "
                 + columnIndex + "(" + fields[columnIndex - 1] + ").", SQLError.SQL_STATE_ILLEGAL_ARGUMENT);
         }
     }
@@ -1143,7 +1143,8 @@ public class ResultSet implements java.sql.ResultSet {
      *
      * @exception SQLException if a database-access error occurs, or the
      *            condition 0 &lt;= rows &lt;= this.getMaxRows() is not
-     *            satisfied. Currently ignored by this driver.
+     *            satisfied. Only streaming result sets use this, as the
+     *            number of rows to read from the server at a time.
      */
     public void setFetchSize(int rows) throws SQLException {
         if (rows < 0) { /* || rows > getMaxRows()*/
@@ -1152,6 +1153,10 @@ public class ResultSet implements java.sql.ResultSet {
         }
 
         fetchSize = rows;
+
+        if ((rows > 0) && (this.rowData instanceof RowDataDynamic)) {
+            ((RowDataDynamic) this.rowData).setFetchSize(rows);
+        }
     }
 
     /**
@@ -1788,19 +1793,33 @@ public class ResultSet implements java.sql.ResultSet {
         String stringVal = null;
         columnIndex--; // JDBC is 1-based, Java is not !?
 
+        // Values of compact rows are read where they are, not copied out
+        byte[] value = thisRow[columnIndex];
+        int offset = 0;
+        int length = value.length;
+
+        if (RowDataCompact.isInArena(value)) {
+            RowDataCompact compactRows = (RowDataCompact) this.rowData;
+
+            value = compactRows.getArena(columnIndex);
+            offset = compactRows.getOffset(columnIndex);
+            length = compactRows.getLength(columnIndex);
+        }
+
         if ((connection != null) && connection.useUnicode()) {
             try {
                 String encoding = this.fields[columnIndex].getCharacterSet();
 
                 if (encoding == null) {
-                    stringVal = new String(thisRow[columnIndex]);
+                    stringVal = new String(value, offset, length);
                 } else {
                     SingleByteCharsetConverter converter = this.connection.getCharsetConverter(encoding);
 
                     if (converter != null) {
-                        stringVal = converter.toString(thisRow[columnIndex]);
+                        stringVal = converter.toString(value, offset, length);
                     } else {
-                        stringVal = new String(thisRow[columnIndex], encoding);
+                        stringVal = new String(value, offset, length,
+                                encoding);
                     }
                 }
             } catch (java.io.UnsupportedEncodingException E) {
@@ -1808,7 +1827,7 @@ public class ResultSet implements java.sql.ResultSet {
                     + connection.getEncoding() + "'.", SQLError.SQL_STATE_GENERAL_ERROR);
             }
         } else {
-            stringVal = StringUtils.toAsciiString(thisRow[columnIndex]);
+            stringVal = StringUtils.toAsciiString(value, offset, length);
         }
 
         return stringVal;
@@ -3630,6 +3649,24 @@ public class ResultSet implements java.sql.ResultSet {
         }
     }
 
+    /**
+     * Returns a value of the current row, copying it out of compact row
+     * storage first if it is still there (see RowDataCompact).
+     *
+     * @param columnIndex the column, starting at 0
+     *
+     * @return the value, null for SQL NULL
+     */
+    private byte[] getColumnValue(int columnIndex) {
+        byte[] value = thisRow[columnIndex];
+
+        if (RowDataCompact.isInArena(value)) {
+            value = ((RowDataCompact) this.rowData).copyValue(columnIndex);
+        }
+
+        return value;
+    }
+
     protected void realClose(boolean closeRowData) throws SQLException {
         try {
             if (closeRowData && (this.rowData != null)) {
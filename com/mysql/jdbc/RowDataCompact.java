@@ -0,0 +1,478 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+/**
+ * An in-memory result set that keeps its values in a few large byte arrays
+ * (arenas) with an offset/length index, rather than one array per value, so
+ * a large result costs a handful of objects to hold instead of one per
+ * column per row.
+ *
+ * <p>
+ * Moving to a row allocates nothing. Every move hands out the same byte[][],
+ * holding null for SQL NULL and a placeholder (see isInArena()) for each
+ * value that is still in its arena. ResultSet.getString() reads those
+ * values in place; getters that hand out the array itself copy the value
+ * out first with copyValue(). Because the row array is shared and values
+ * are copied out on demand, this is only used for read-only result sets
+ * (updatable ones change the current row in place).
+ * </p>
+ */
+public class RowDataCompact implements RowData {
+    /** Size of each arena */
+    private static final int ARENA_SIZE = 64 * 1024;
+
+    /** Values bigger than this get an arena of their own */
+    private static final int MAX_SHARED_VALUE = ARENA_SIZE / 8;
+
+    /** Each value's index entry is arena, offset, length (-1 for NULL) */
+    private static final int INDEX_INTS = 3;
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    /** Stands in for a value that hasn't been copied out of its arena */
+    private static final byte[] IN_ARENA = new byte[0];
+
+    private byte[][] arenas = new byte[16][];
+    private int arenaCount = 0;
+
+    /** Where the next value goes in the last shared arena */
+    private int arenaPos = ARENA_SIZE;
+
+    /** Index of the last shared arena, -1 if none */
+    private int sharedArena = -1;
+
+    private int[] valueIndex;
+    private int valueCount = 0;
+    private int columnCount;
+
+    private int index = -1;
+    private ResultSet owner;
+
+    /** The row handed out by every move, re-used from row to row */
+    private byte[][] currentRow;
+
+    /** The row currentRow holds, -1 if none */
+    private int currentRowIndex = -1;
+
+    /**
+     * Creates a new, empty RowDataCompact object.
+     *
+     * @param columnCount the number of columns in each row
+     */
+    public RowDataCompact(int columnCount) {
+        this.columnCount = columnCount;
+        this.valueIndex = new int[INDEX_INTS * Math.max(columnCount, 1) * 16];
+        this.currentRow = new byte[columnCount][];
+    }
+
+    /**
+     * Is this value from a row handed out by this class still in its
+     * arena? If so, read it with getArena()/getOffset()/getLength() or
+     * copyValue(), not from the array itself.
+     *
+     * @param value a value from the current row
+     *
+     * @return true if the value is a placeholder
+     */
+    static boolean isInArena(byte[] value) {
+        return value == IN_ARENA;
+    }
+
+    /**
+     * Copies a value of the current row out of its arena, and leaves the
+     * copy in the row so that reading it again doesn't copy again.
+     *
+     * @param column the column, starting at 0
+     *
+     * @return the value
+     */
+    byte[] copyValue(int column) {
+        int entry = valueEntry(column);
+        int length = this.valueIndex[entry + 2];
+        byte[] value = new byte[length];
+
+        System.arraycopy(this.arenas[this.valueIndex[entry]],
+            this.valueIndex[entry + 1], value, 0, length);
+        this.currentRow[column] = value;
+
+        return value;
+    }
+
+    /**
+     * Returns the arena holding a value of the current row.
+     *
+     * @param column the column, starting at 0
+     *
+     * @return the arena
+     */
+    byte[] getArena(int column) {
+        return this.arenas[this.valueIndex[valueEntry(column)]];
+    }
+
+    /**
+     * Returns where in its arena a value of the current row starts.
+     *
+     * @param column the column, starting at 0
+     *
+     * @return the value's offset
+     */
+    int getOffset(int column) {
+        return this.valueIndex[valueEntry(column) + 1];
+    }
+
+    /**
+     * Returns the length of a value of the current row.
+     *
+     * @param column the column, starting at 0
+     *
+     * @return the value's length, -1 for NULL
+     */
+    int getLength(int column) {
+        return this.valueIndex[valueEntry(column) + 2];
+    }
+
+    /**
+     * Appends a value to the row being added. Rows are complete once
+     * columnCount values have been added.
+     *
+     * @param source where the value's bytes are
+     * @param offset where in source the value starts
+     * @param length the value's length, or -1 for NULL
+     */
+    void addValue(byte[] source, int offset, int length) {
+        if ((this.valueCount * INDEX_INTS) == this.valueIndex.length) {
+            int[] newIndex = new int[this.valueIndex.length * 2];
+            System.arraycopy(this.valueIndex, 0, newIndex, 0,
+                this.valueIndex.length);
+            this.valueIndex = newIndex;
+        }
+
+        int entry = this.valueCount++ * INDEX_INTS;
+
+        if (length <= 0) {
+            this.valueIndex[entry] = 0;
+            this.valueIndex[entry + 1] = 0;
+            this.valueIndex[entry + 2] = length;
+
+            return;
+        }
+
+        int arena;
+        int arenaOffset;
+
+        if (length > MAX_SHARED_VALUE) {
+            arena = newArena(length);
+            arenaOffset = 0;
+        } else {
+            if ((this.arenaPos + length) > ARENA_SIZE) {
+                this.sharedArena = newArena(ARENA_SIZE);
+                this.arenaPos = 0;
+            }
+
+            arena = this.sharedArena;
+            arenaOffset = this.arenaPos;
+            this.arenaPos += length;
+        }
+
+        System.arraycopy(source, offset, this.arenas[arena], arenaOffset,
+            length);
+
+        this.valueIndex[entry] = arena;
+        this.valueIndex[entry + 1] = arenaOffset;
+        this.valueIndex[entry + 2] = length;
+    }
+
+    /**
+     * Returns true if we got the last element.
+     *
+     * @return DOCUMENT ME!
+     */
+    public boolean isAfterLast() {
+        return this.index >= size();
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param atIndex DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public byte[][] getAt(int atIndex) {
+        if ((atIndex < 0) || (atIndex >= size())) {
+            return null;
+        } else {
+            return loadRow(atIndex);
+        }
+    }
+
+    /**
+     * Returns if iteration has not occured yet.
+     *
+     * @return DOCUMENT ME!
+     */
+    public boolean isBeforeFirst() {
+        return (this.index == -1) && (size() != 0);
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param newIndex DOCUMENT ME!
+     */
+    public void setCurrentRow(int newIndex) {
+        this.index = newIndex;
+    }
+
+    /**
+     * @see com.mysql.jdbc.RowData#setOwner(com.mysql.jdbc.ResultSet)
+     */
+    public void setOwner(ResultSet rs) {
+        this.owner = rs;
+    }
+
+    /**
+     * @see com.mysql.jdbc.RowData#getOwner()
+     */
+    public ResultSet getOwner() {
+        return this.owner;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public int getCurrentRowNumber() {
+        return this.index;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public boolean isDynamic() {
+        return false;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public boolean isFirst() {
+        return this.index == 0;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public boolean isLast() {
+        //
+        // You can never be on the 'last' row of
+        // an empty result set
+        //
+        if (size() == 0) {
+            return false;
+        }
+
+        return (this.index == (size() - 1));
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param row DOCUMENT ME!
+     */
+    public void addRow(byte[][] row) {
+        for (int i = 0; i < this.columnCount; i++) {
+            byte[] value = row[i];
+
+            if (value == null) {
+                addValue(null, 0, -1);
+            } else {
+                addValue(value, 0, value.length);
+            }
+        }
+    }
+
+    /**
+     * Moves to after last.
+     */
+    public void afterLast() {
+        this.index = size();
+    }
+
+    /**
+     * Moves to before first.
+     */
+    public void beforeFirst() {
+        this.index = -1;
+    }
+
+    /**
+     * DOCUMENT ME!
+     */
+    public void beforeLast() {
+        this.index = size() - 2;
+    }
+
+    /**
+     * Does nothing, like RowDataStatic.close(). ResultSet closes the rows
+     * of a single-row result when it is created, and lets go of them when
+     * it is closed itself.
+     */
+    public void close() {
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public boolean hasNext() {
+        boolean hasMore = (this.index + 1) < size();
+
+        return hasMore;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param rows DOCUMENT ME!
+     */
+    public void moveRowRelative(int rows) {
+        this.index += rows;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public byte[][] next() {
+        this.index++;
+
+        if (this.index < size()) {
+            return loadRow(this.index);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Removes a row from the index. Its values stay in their arena until
+     * the result set is closed.
+     *
+     * @param atIndex DOCUMENT ME!
+     */
+    public void removeRow(int atIndex) {
+        int start = atIndex * this.columnCount * INDEX_INTS;
+        int rowInts = this.columnCount * INDEX_INTS;
+
+        System.arraycopy(this.valueIndex, start + rowInts, this.valueIndex,
+            start, (this.valueCount * INDEX_INTS) - start - rowInts);
+        this.valueCount -= this.columnCount;
+
+        this.currentRowIndex = -1;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public int size() {
+        return (this.columnCount == 0) ? 0 : (this.valueCount / this.columnCount);
+    }
+
+    /**
+     * Makes currentRow the given row, without copying any values.
+     *
+     * @param rowIndex the row to move to
+     *
+     * @return currentRow
+     */
+    private byte[][] loadRow(int rowIndex) {
+        if (rowIndex == this.currentRowIndex) {
+            return this.currentRow;
+        }
+
+        int entry = rowIndex * this.columnCount * INDEX_INTS;
+
+        for (int i = 0; i < this.columnCount; i++, entry += INDEX_INTS) {
+            int length = this.valueIndex[entry + 2];
+
+            if (length < 0) {
+                this.currentRow[i] = null;
+            } else if (length == 0) {
+                this.currentRow[i] = EMPTY_VALUE;
+            } else {
+                this.currentRow[i] = IN_ARENA;
+            }
+        }
+
+        this.currentRowIndex = rowIndex;
+
+        return this.currentRow;
+    }
+
+    /**
+     * Returns where a value of the current row is in valueIndex.
+     *
+     * @param column the column, starting at 0
+     *
+     * @return the value's index entry
+     */
+    private int valueEntry(int column) {
+        return ((this.currentRowIndex * this.columnCount) + column) * INDEX_INTS;
+    }
+
+    /**
+     * Adds an arena.
+     *
+     * @param size the arena's size
+     *
+     * @return the new arena's number
+     */
+    private int newArena(int size) {
+        if (this.arenaCount == this.arenas.length) {
+            byte[][] newArenas = new byte[this.arenas.length * 2][];
+            System.arraycopy(this.arenas, 0, newArenas, 0, this.arenaCount);
+            this.arenas = newArenas;
+        }
+
+        this.arenas[this.arenaCount] = new byte[size];
+
+        return this.arenaCount++;
+    }
+}
@@ -24,7 +24,10 @@ import java.sql.SQLException;
 
 
 /**
- * Allows streaming of MySQL data.
+ * Allows streaming of MySQL data. Rows are read from the server in batches
+ * of the fetch size. With prefetching on, the next batch is read on a
+ * thread of its own while the current one is being used, so at most two
+ * batches are held at once.
  *
  * @author dgan
  * @version $Id: RowDataDynamic.java,v 1.8.2.6 2003/12/24 05:16:24 mmatthew Exp $
@@ -32,12 +35,22 @@ import java.sql.SQLException;
 public class RowDataDynamic implements RowData {
     private MysqlIO io;
     private byte[][] nextRow;
+    private RowBatch currentBatch = new RowBatch();
+    private int currentBatchPos = 0;
+    private volatile int fetchSize;
+
+    /** Guards spareBatch and spareBatchReady */
+    private Object prefetchLock = new Object();
+    private Thread prefetcher = null;
+    private RowBatch spareBatch = null;
+    private boolean spareBatchReady = false;
+    private boolean prefetchStopped = false;
     private boolean isAfterEnd = false;
     private boolean isAtEnd = false;
     private boolean streamerClosed = false;
     private int columnCount;
     private int index = -1;
-    private long lastSuccessfulReadTimeMs = 0;
+    private volatile long lastSuccessfulReadTimeMs = 0;
     private long netWriteTimeoutMs = 0;
     private ResultSet owner;
 
@@ -50,9 +63,46 @@ public class RowDataDynamic implements RowData {
      * @throws SQLException DOCUMENT ME!
      */
     public RowDataDynamic(MysqlIO io, int colCount) throws SQLException {
+        this(io, colCount, 1, false);
+    }
+
+    /**
+     * Creates a new RowDataDynamic object, reading the first batch of rows.
+     *
+     * @param io the connection's I/O
+     * @param colCount the number of columns in each row
+     * @param fetchSize how many rows to read from the server at a time
+     * @param prefetch should the next batch be read by a thread of its own?
+     *
+     * @throws SQLException if the first batch can't be read
+     */
+    public RowDataDynamic(MysqlIO io, int colCount, int fetchSize,
+        boolean prefetch) throws SQLException {
         this.io = io;
         this.columnCount = colCount;
+        this.fetchSize = (fetchSize < 1) ? 1 : fetchSize;
         nextRecord();
+
+        if (prefetch && !this.currentBatch.atEnd
+                && (this.currentBatch.failure == null)) {
+            this.spareBatch = new RowBatch();
+            this.prefetcher = new Thread(new Prefetcher(),
+                    "MySQL streaming result set prefetcher");
+            this.prefetcher.setDaemon(true);
+            this.prefetcher.start();
+        }
+    }
+
+    /**
+     * Sets how many rows to read from the server at a time, starting with
+     * the next batch.
+     *
+     * @param rows the fetch size, 1 or more
+     */
+    public void setFetchSize(int rows) {
+        if (rows > 0) {
+            this.fetchSize = rows;
+        }
     }
 
     /**
@@ -306,13 +356,11 @@ public class RowDataDynamic implements RowData {
     private void nextRecord() throws SQLException {
         try {
             if (!isAtEnd) {
-                nextRow = io.nextRow((int) columnCount);
+                nextRow = takeRow();
 
                 if (nextRow == null) {
                     isAtEnd = true;
                 }
-                
-                this.lastSuccessfulReadTimeMs = System.currentTimeMillis();
             } else {
                 isAfterEnd = true;
             }
@@ -349,10 +397,194 @@ public class RowDataDynamic implements RowData {
         }
     }
 
+    /**
+     * Stops the prefetcher, waiting for any read it has in progress, so that
+     * something else can use the connection's input stream.
+     */
+    void stopPrefetching() {
+        if (this.prefetcher == null) {
+            return;
+        }
+
+        synchronized (this.prefetchLock) {
+            this.prefetchStopped = true;
+            this.prefetchLock.notifyAll();
+        }
+
+        boolean interrupted = false;
+
+        while (this.prefetcher.isAlive()) {
+            try {
+                this.prefetcher.join();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the next row from the current batch, fetching another batch
+     * when it runs out.
+     *
+     * @return the next row, or null at the end of the results
+     *
+     * @throws Exception if reading the row failed
+     */
+    private byte[][] takeRow() throws Exception {
+        while (true) {
+            RowBatch batch = this.currentBatch;
+
+            if (this.currentBatchPos < batch.count) {
+                byte[][] row = batch.rows[this.currentBatchPos];
+
+                // Don't hold on to rows we've handed out
+                batch.rows[this.currentBatchPos++] = null;
+
+                return row;
+            }
+
+            if (batch.failure != null) {
+                Exception failure = batch.failure;
+                batch.failure = null;
+                batch.atEnd = true;
+
+                throw failure;
+            }
+
+            if (batch.atEnd) {
+                return null;
+            }
+
+            fetchBatch();
+        }
+    }
+
+    /**
+     * Makes the next batch of rows current, either by reading it or by
+     * taking it from the prefetcher.
+     *
+     * @throws SQLException if interrupted while waiting for the prefetcher
+     */
+    private void fetchBatch() throws SQLException {
+        this.currentBatchPos = 0;
+
+        if (this.prefetcher == null) {
+            readBatch(this.currentBatch);
+
+            return;
+        }
+
+        synchronized (this.prefetchLock) {
+            while (!this.spareBatchReady) {
+                try {
+                    this.prefetchLock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+
+                    throw new SQLException("Interrupted while waiting for rows from streaming result set",
+                        SQLError.SQL_STATE_GENERAL_ERROR);
+                }
+            }
+
+            RowBatch filled = this.spareBatch;
+            this.spareBatch = this.currentBatch;
+            this.currentBatch = filled;
+            this.spareBatchReady = false;
+            this.prefetchLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reads up to fetchSize rows into the given batch. Never throws, a
+     * failure is kept in the batch and reported once the rows read before
+     * it have been used.
+     *
+     * @param batch the batch to fill
+     */
+    private void readBatch(RowBatch batch) {
+        int size = this.fetchSize;
+
+        if ((batch.rows == null) || (batch.rows.length != size)) {
+            batch.rows = new byte[size][][];
+        }
+
+        batch.count = 0;
+
+        try {
+            while (batch.count < size) {
+                byte[][] row = this.io.nextRow(this.columnCount);
+
+                if (row == null) {
+                    batch.atEnd = true;
+
+                    break;
+                }
+
+                batch.rows[batch.count++] = row;
+                this.lastSuccessfulReadTimeMs = System.currentTimeMillis();
+            }
+        } catch (Exception ex) {
+            batch.failure = ex;
+        }
+    }
+
     private void notSupported() throws SQLException {
         throw new OperationNotSupportedException();
     }
 
+    /**
+     * A batch of rows read from the server
+     */
+    static class RowBatch {
+        byte[][][] rows;
+        int count = 0;
+        boolean atEnd = false;
+        Exception failure = null;
+    }
+
+    /**
+     * Reads the next batch while the current one is being used. Stops after
+     * the last row has been read, the first failure, or stopPrefetching().
+     */
+    class Prefetcher implements Runnable {
+        public void run() {
+            while (true) {
+                RowBatch batch;
+
+                synchronized (prefetchLock) {
+                    while (spareBatchReady && !prefetchStopped) {
+                        try {
+                            prefetchLock.wait();
+                        } catch (InterruptedException ie) {
+                            // Nobody else can read these rows, keep going
+                        }
+                    }
+
+                    if (prefetchStopped) {
+                        return;
+                    }
+
+                    batch = spareBatch;
+                }
+
+                readBatch(batch);
+
+                synchronized (prefetchLock) {
+                    spareBatchReady = true;
+                    prefetchLock.notifyAll();
+                }
+
+                if (batch.atEnd || (batch.failure != null)) {
+                    return;
+                }
+            }
+        }
+    }
+
     class OperationNotSupportedException extends SQLException {
         OperationNotSupportedException() {
             super("Operation not supported for streaming result sets", SQLError.SQL_STATE_ILLEGAL_ARGUMENT);
@@ -0,0 +1,245 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.lang.management.ManagementFactory;
+
+import java.sql.Types;
+
+import java.util.ArrayList;
+
+
+/**
+ * Compares RowDataCompact with RowDataStatic for a large read-only result:
+ * the heap each keeps alive, what filling it costs, and what scanning it
+ * through ResultSet costs per row, moving only, reading every column with
+ * getString() and reading every column with getBytes().
+ *
+ * <p>
+ * Rows are filled the way MysqlIO does it: one array per value copied out
+ * of the row packet for RowDataStatic, addValue() straight from the packet
+ * for RowDataCompact. Run with a heap big enough for the static rows (about
+ * 1.5G for the default million) so the numbers aren't mostly GC.
+ * </p>
+ *
+ * <pre>
+ *     java -Xmx2g com.mysql.jdbc.RowStorageBenchmark [rows]
+ * </pre>
+ */
+public class RowStorageBenchmark {
+    private static final int COLUMNS = 10;
+
+    /** Number of distinct row packets, cycled through */
+    private static final int PACKETS = 4096;
+
+    /** Keeps the JIT from throwing the reads away */
+    private static long sink = 0;
+
+    /**
+     * Entry point for program when called from the command line.
+     *
+     * @param args command-line args. Arg 1 is the number of rows, 1M if
+     *        not given.
+     *
+     * @throws Exception if any errors occur
+     */
+    public static void main(String[] args) throws Exception {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        Field[] fields = new Field[COLUMNS];
+
+        for (int i = 0; i < COLUMNS; i++) {
+            fields[i] = new Field("photos", "c" + i, Types.VARCHAR, 32);
+        }
+
+        for (int warm = 0; warm < 3; warm++) {
+            scan(fields, build(new RowSource(), false, rows / 10), 2);
+            scan(fields, build(new RowSource(), true, rows / 10), 2);
+        }
+
+        report("static ", fields, rows, false);
+        report("compact", fields, rows, true);
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void report(String name, Field[] fields, int rows,
+        boolean compact) throws Exception {
+        RowSource source = new RowSource();
+        long heap0 = usedHeap();
+        long a0 = allocated();
+        long t0 = System.nanoTime();
+        RowData rowData = build(source, compact, rows);
+        long buildNs = System.nanoTime() - t0;
+        long buildBytes = allocated() - a0;
+        long retained = usedHeap() - heap0;
+
+        System.out.println(name + " rows=" + rows + " retained MB="
+            + (retained >> 20) + " fill ms=" + (buildNs / 1000000)
+            + " fill bytes/row=" + (buildBytes / rows));
+
+        for (int mode = 0; mode < 3; mode++) {
+            a0 = allocated();
+            t0 = System.nanoTime();
+            scan(fields, rowData, mode);
+
+            long ns = System.nanoTime() - t0;
+            long bytes = allocated() - a0;
+
+            System.out.println("    "
+                + ((mode == 0) ? "next()    "
+                               : ((mode == 1) ? "getBytes()" : "getString()"))
+                + " ns/row=" + (ns / rows) + " bytes/row=" + (bytes / rows));
+        }
+    }
+
+    /**
+     * Fills row storage from row packets.
+     */
+    private static RowData build(RowSource source, boolean compact, int rows) {
+        byte[][] packets = source.packets;
+        int[][] offsets = source.offsets;
+        int[][] lengths = source.lengths;
+        ArrayList staticRows = compact ? null : new ArrayList(rows);
+        RowDataCompact compactRows = compact ? new RowDataCompact(COLUMNS)
+                                             : null;
+
+        for (int r = 0; r < rows; r++) {
+            int p = r % PACKETS;
+            byte[] packet = packets[p];
+
+            if (compact) {
+                for (int i = 0; i < COLUMNS; i++) {
+                    compactRows.addValue(packet, offsets[p][i],
+                        lengths[p][i]);
+                }
+            } else {
+                byte[][] row = new byte[COLUMNS][];
+
+                for (int i = 0; i < COLUMNS; i++) {
+                    if (lengths[p][i] >= 0) {
+                        row[i] = new byte[lengths[p][i]];
+                        System.arraycopy(packet, offsets[p][i], row[i], 0,
+                            lengths[p][i]);
+                    }
+                }
+
+                staticRows.add(row);
+            }
+        }
+
+        return compact ? (RowData) compactRows
+                       : (RowData) new RowDataStatic(staticRows);
+    }
+
+    /**
+     * Scans the rows, mode 0 just moving, 1 reading every column with
+     * getBytes(), 2 with getString().
+     */
+    private static void scan(Field[] fields, RowData rowData, int mode)
+        throws Exception {
+        rowData.beforeFirst();
+
+        ResultSet rs = new ResultSet(fields, rowData);
+
+        while (rs.next()) {
+            if (mode == 1) {
+                for (int i = 1; i <= COLUMNS; i++) {
+                    byte[] value = rs.getBytes(i);
+
+                    sink += ((value == null) ? 0 : value.length);
+                }
+            } else if (mode == 2) {
+                for (int i = 1; i <= COLUMNS; i++) {
+                    String value = rs.getString(i);
+
+                    sink += ((value == null) ? 0 : value.length());
+                }
+            }
+        }
+    }
+
+    /**
+     * Lays out a photo-table-like row: ids, names, a timestamp, counts and
+     * a status, with column 9 NULL in every fourth row. Lengths of -1 mean
+     * NULL.
+     */
+    private static byte[] rowPacket(int r, int[] offsets, int[] lengths) {
+        byte[] packet = new byte[256];
+        String[] values = {
+                String.valueOf(1000000 + r), String.valueOf(r % 5000),
+                "IMG_" + (r % 10000) + ".JPG", "2009-06-13 12:34:56",
+                String.valueOf((r * 31) % 4000000), "public",
+                String.valueOf(r % 3), String.valueOf(r % 1000), "0.0",
+                ((r % 4) == 0) ? null : "holiday, beach"
+            };
+        int pos = 0;
+
+        for (int i = 0; i < COLUMNS; i++) {
+            if (values[i] == null) {
+                offsets[i] = pos;
+                lengths[i] = -1;
+
+                continue;
+            }
+
+            offsets[i] = pos;
+            lengths[i] = values[i].length();
+
+            for (int j = 0; j < lengths[i]; j++) {
+                packet[pos++] = (byte) values[i].charAt(j);
+            }
+        }
+
+        return packet;
+    }
+
+    /**
+     * Row packets to fill from, made up front so filling allocates nothing
+     * but the row storage.
+     */
+    private static final class RowSource {
+        byte[][] packets = new byte[PACKETS][];
+        int[][] offsets = new int[PACKETS][COLUMNS];
+        int[][] lengths = new int[PACKETS][COLUMNS];
+
+        RowSource() {
+            for (int p = 0; p < PACKETS; p++) {
+                this.packets[p] = rowPacket(p, this.offsets[p],
+                        this.lengths[p]);
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+                                .getUsed();
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread()
+                                                          .getId());
+    }
+}
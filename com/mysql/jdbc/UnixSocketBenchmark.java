@@ -0,0 +1,216 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/**
+ * Times request/response round trips through UnixSocketFactory against
+ * ChannelSocketFactory on TCP localhost. A stand-in server answers each
+ * request packet with a reply packet of a given size, and the client side
+ * writes through a 16K BufferedOutputStream and reads with a PacketReader
+ * on the channel, as MysqlIO does for these factories.
+ *
+ * <pre>
+ *     java com.mysql.jdbc.UnixSocketBenchmark [round trips] [reply size ...]
+ * </pre>
+ */
+public class UnixSocketBenchmark {
+    /** Size of the request packet's payload, a short query */
+    private static final int REQUEST_LENGTH = 40;
+
+    /**
+     * Entry point for program when called from the command line.
+     *
+     * @param args command-line args. Arg 1 is the number of round trips
+     *        per reply size (100000 if not given), the rest are reply
+     *        sizes in bytes.
+     *
+     * @throws Exception if any errors occur
+     */
+    public static void main(String[] args) throws Exception {
+        int roundTrips = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int[] sizes = { 16, 1024, 64 * 1024 };
+
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        File socketFile = File.createTempFile("mysql-bench", ".sock");
+
+        socketFile.delete();
+
+        ServerSocketChannel unixServer = ServerSocketChannel.open(
+                StandardProtocolFamily.UNIX);
+
+        unixServer.bind(UnixDomainSocketAddress.of(socketFile.getPath()));
+
+        ServerSocketChannel tcpServer = ServerSocketChannel.open();
+
+        tcpServer.bind(new InetSocketAddress(InetAddress.getByName(
+                    "127.0.0.1"), 0));
+
+        try {
+            for (int s = 0; s < sizes.length; s++) {
+                Properties props = new Properties();
+
+                props.setProperty("unixSocketPath", socketFile.getPath());
+
+                long[] unix = run(new UnixSocketFactory(), props, unixServer,
+                        sizes[s], roundTrips);
+
+                props = new Properties();
+                props.setProperty("PORT",
+                    String.valueOf(tcpServer.socket().getLocalPort()));
+
+                long[] tcp = run(new ChannelSocketFactory(), props, tcpServer,
+                        sizes[s], roundTrips);
+
+                System.out.println("reply=" + sizes[s] + " unix "
+                    + summary(unix) + "  tcp " + summary(tcp));
+            }
+        } finally {
+            unixServer.close();
+            tcpServer.close();
+            socketFile.delete();
+        }
+    }
+
+    /**
+     * Connects through the factory and times roundTrips request/replies
+     * after a warm-up, returning each one's latency in ns.
+     */
+    private static long[] run(ChannelSocketFactory factory, Properties props,
+        ServerSocketChannel server, final int replyLength, int roundTrips)
+        throws Exception {
+        Socket socket = factory.connect("127.0.0.1", props);
+        final SocketChannel peer = server.accept();
+
+        Thread responder = new Thread("responder") {
+                public void run() {
+                    respond(peer, replyLength);
+                }
+            };
+
+        responder.setDaemon(true);
+        responder.start();
+
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(),
+                16384);
+        PacketReader reader = new PacketReader(factory.getChannel(),
+                PacketReader.DEFAULT_READ_AHEAD);
+        byte[] request = new byte[MysqlIO.HEADER_LENGTH + REQUEST_LENGTH];
+        byte[] reply = new byte[replyLength + 1];
+        long[] latencies = new long[roundTrips];
+
+        request[0] = (byte) REQUEST_LENGTH;
+
+        try {
+            for (int i = -(roundTrips / 10); i < roundTrips; i++) {
+                long t0 = System.nanoTime();
+
+                out.write(request, 0, request.length);
+                out.flush();
+
+                int length = reader.readHeader();
+
+                reader.readPayload(reply, 0, length);
+
+                if (i >= 0) {
+                    latencies[i] = System.nanoTime() - t0;
+                }
+            }
+        } finally {
+            socket.close();
+            peer.close();
+        }
+
+        return latencies;
+    }
+
+    /**
+     * Answers each request packet with one reply packet of replyLength
+     * bytes, until the client goes away.
+     */
+    private static void respond(SocketChannel peer, int replyLength) {
+        ByteBuffer request = ByteBuffer.allocateDirect(MysqlIO.HEADER_LENGTH
+                + REQUEST_LENGTH);
+        ByteBuffer reply = ByteBuffer.allocateDirect(MysqlIO.HEADER_LENGTH
+                + replyLength);
+
+        reply.order(ByteOrder.LITTLE_ENDIAN);
+        reply.putInt(0, replyLength | (1 << 24));
+
+        try {
+            while (true) {
+                request.clear();
+
+                while (request.hasRemaining()) {
+                    if (peer.read(request) < 0) {
+                        return;
+                    }
+                }
+
+                reply.clear();
+
+                while (reply.hasRemaining()) {
+                    peer.write(reply);
+                }
+            }
+        } catch (IOException ioEx) {
+            // the client closed, we're done
+        }
+    }
+
+    private static String summary(long[] latencies) {
+        long total = 0;
+
+        for (int i = 0; i < latencies.length; i++) {
+            total += latencies[i];
+        }
+
+        Arrays.sort(latencies);
+
+        return "mean=" + ((total / latencies.length) / 1000.0) + "us p50="
+        + (latencies[latencies.length / 2] / 1000.0) + "us p99="
+        + (latencies[(latencies.length * 99) / 100] / 1000.0) + "us";
+    }
+}
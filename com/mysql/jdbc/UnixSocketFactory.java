@@ -0,0 +1,158 @@
+/*
+   Copyright (C) 2026
+
+      This program is free software; you can redistribute it and/or modify
+      it under the terms of the GNU General Public License as published by
+      the Free Software Foundation; either version 2 of the License, or
+      (at your option) any later version.
+
+      This program is distributed in the hope that it will be useful,
+      but WITHOUT ANY WARRANTY; without even the implied warranty of
+      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+      GNU General Public License for more details.
+
+      You should have received a copy of the GNU General Public License
+      along with this program; if not, write to the Free Software
+      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+ */
+package com.mysql.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import java.util.Properties;
+
+
+/**
+ * A socket factory for Unix domain sockets, for servers on the same host.
+ * The socket file is given by the &quot;unixSocketPath&quot; property and
+ * defaults to /tmp/mysql.sock; the host and port are ignored.
+ *
+ * <p>
+ * socketTimeout is not enforced on Unix domain sockets, as blocking channel
+ * reads don't honor it.
+ * </p>
+ */
+public class UnixSocketFactory extends ChannelSocketFactory {
+    private static final String UNIX_SOCKET_PROP_NAME = "unixSocketPath";
+    private static final String DEFAULT_UNIX_SOCKET_PATH = "/tmp/mysql.sock";
+
+    /**
+     * Constructor for UnixSocketFactory.
+     */
+    public UnixSocketFactory() {
+        super();
+    }
+
+    /**
+     * @see com.mysql.jdbc.SocketFactory#connect(String, Properties)
+     */
+    public Socket connect(String host, Properties props)
+        throws SocketException, IOException {
+        String unixSocketPath = (props == null) ? null
+                                                : props.getProperty(UNIX_SOCKET_PROP_NAME);
+
+        if (unixSocketPath == null) {
+            unixSocketPath = DEFAULT_UNIX_SOCKET_PATH;
+        } else if (unixSocketPath.length() == 0) {
+            throw new SocketException(
+                "Can not specify NULL or empty value for property '"
+                + UNIX_SOCKET_PROP_NAME + "'.");
+        }
+
+        this.host = host;
+        this.channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+
+        try {
+            this.channel.connect(UnixDomainSocketAddress.of(unixSocketPath));
+        } catch (IOException ioEx) {
+            this.channel.close();
+            this.channel = null;
+
+            throw ioEx;
+        }
+
+        this.rawSocket = new UnixSocket(this.channel);
+
+        return this.rawSocket;
+    }
+
+    /**
+     * A socket that encapsulates a Unix domain socket channel, which has no
+     * socket adaptor of its own
+     */
+    class UnixSocket extends Socket {
+        private SocketChannel unixChannel;
+
+        UnixSocket(SocketChannel unixChannel) {
+            this.unixChannel = unixChannel;
+        }
+
+        /**
+         * @see java.net.Socket#getChannel()
+         */
+        public SocketChannel getChannel() {
+            return this.unixChannel;
+        }
+
+        /**
+         * @see java.net.Socket#isClosed()
+         */
+        public boolean isClosed() {
+            return !this.unixChannel.isOpen();
+        }
+
+        /**
+         * @see java.net.Socket#isConnected()
+         */
+        public boolean isConnected() {
+            return this.unixChannel.isConnected();
+        }
+
+        /**
+         * @see java.net.Socket#getInputStream()
+         */
+        public InputStream getInputStream() throws IOException {
+            return Channels.newInputStream(this.unixChannel);
+        }
+
+        /**
+         * @see java.net.Socket#getOutputStream()
+         */
+        public OutputStream getOutputStream() throws IOException {
+            return Channels.newOutputStream(this.unixChannel);
+        }
+
+        /**
+         * @see java.net.Socket#setSoTimeout(int)
+         */
+        public synchronized void setSoTimeout(int timeout)
+            throws SocketException {
+            // Not supported by blocking channels, see class comment
+        }
+
+        /**
+         * @see java.net.Socket#setTcpNoDelay(boolean)
+         */
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            // No Nagle on Unix domain sockets
+        }
+
+        /**
+         * @see java.net.Socket#close()
+         */
+        public synchronized void close() throws IOException {
+            this.unixChannel.close();
+        }
+    }
+}